@@ -0,0 +1,364 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.bridge;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.core.event.DataAvailableEvent;
+import org.omg.dds.core.policy.QosPolicy;
+import org.omg.dds.domain.DomainParticipant;
+import org.omg.dds.domain.DomainParticipantFactory;
+import org.omg.dds.pub.DataWriter;
+import org.omg.dds.pub.DataWriterQos;
+import org.omg.dds.pub.Publisher;
+import org.omg.dds.sub.*;
+import org.omg.dds.topic.Topic;
+import org.omg.dds.topic.TopicQos;
+import vortex.commons.serialization.QoSSerializer;
+import vortex.commons.util.BaseDataReaderListener;
+import vortex.commons.util.RateWindow;
+import vortex.commons.util.VConfig;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Mirrors topics between participants on different domains.
+ * <p/>
+ * Each route reads a topic on one domain and writes it on another. Samples
+ * are taken in batches of up to {@code maxBatch} and written between
+ * suspended and resumed publications, so the middleware can pack them. The
+ * QoS of both sides of a route derives from the QoS of the topic, as
+ * declared by the applications on the source domain, and can be overridden
+ * with a named profile, a JSON policy array understood by
+ * {@link QoSSerializer}. Every sample carrying data is forwarded whatever the
+ * state of its instance, and instances disposed or left without writers on
+ * the source domain are disposed or unregistered by the route writer, once
+ * it wrote them. A route never sends back the samples the opposite
+ * route wrote, so two opposite routes do not loop and routes can be chained
+ * across several domains. Routes must not form longer cycles, such as
+ * A to B to C to A.
+ */
+public class DomainBridge implements AutoCloseable {
+
+    public static class RouteStats {
+        private final String name;
+        private final LongAdder forwarded = new LongAdder();
+        private final LongAdder filtered = new LongAdder();
+        private final LongAdder suppressed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder instanceStates = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private final RateWindow throughput = new RateWindow();
+        private final AtomicLong lastLagMillis = new AtomicLong();
+        private final AtomicLong maxLagMillis = new AtomicLong();
+
+        RouteStats(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long forwarded() {
+            return forwarded.sum();
+        }
+
+        public long filtered() {
+            return filtered.sum();
+        }
+
+        /**
+         * Samples not routed because the opposite route wrote them.
+         */
+        public long suppressed() {
+            return suppressed.sum();
+        }
+
+        public long failed() {
+            return failed.sum();
+        }
+
+        /**
+         * Disposals and unregistrations mirrored on the target domain.
+         */
+        public long instanceStates() {
+            return instanceStates.sum();
+        }
+
+        public long batches() {
+            return batches.sum();
+        }
+
+        public double forwardedPerSecond() {
+            return throughput.perSecond();
+        }
+
+        /**
+         * Source to forward delay of the latest sample, only meaningful with
+         * synchronized clocks.
+         */
+        public long lag(TimeUnit unit) {
+            return unit.convert(lastLagMillis.get(), TimeUnit.MILLISECONDS);
+        }
+
+        public long maxLag(TimeUnit unit) {
+            return unit.convert(maxLagMillis.get(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "RouteStats{name='" + name + '\'' +
+                    ", forwarded=" + forwarded() +
+                    ", filtered=" + filtered() +
+                    ", suppressed=" + suppressed() +
+                    ", failed=" + failed() +
+                    ", instanceStates=" + instanceStates() +
+                    ", batches=" + batches() +
+                    ", lagMillis=" + lastLagMillis.get() + '}';
+        }
+    }
+
+    private static class Domain {
+        final DomainParticipant dp;
+        final Publisher pub;
+        final Subscriber sub;
+        final boolean owned;
+        final Map<String, Topic<?>> topics = new ConcurrentHashMap<>();
+        final int id;
+        // writers created by the bridge on this domain, to the domain they forward from
+        final Map<InstanceHandle, Integer> bridgeWriters = new ConcurrentHashMap<>();
+
+        Domain(int id, DomainParticipant dp, boolean owned) {
+            this.id = id;
+            this.dp = dp;
+            this.pub = dp.createPublisher();
+            this.sub = dp.createSubscriber();
+            this.owned = owned;
+        }
+    }
+
+    private final QoSSerializer qosSerializer;
+    private final int maxBatch;
+    private final long discoveryMillis;
+    private final Map<Integer, Domain> domains = new ConcurrentHashMap<>();
+    private final Map<String, QosPolicy[]> profiles = new ConcurrentHashMap<>();
+    private final List<RouteStats> routes = new CopyOnWriteArrayList<>();
+    private final List<DataReader<?>> readers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param discovery how long to wait for the topic of a route to be found
+     *                  on its source domain before falling back to the
+     *                  default topic QoS
+     */
+    public DomainBridge(int maxBatch, long discovery, TimeUnit unit) {
+        this.qosSerializer = new QoSSerializer(VConfig.DefaultEntities.defaultPolicyFactory());
+        this.maxBatch = maxBatch;
+        this.discoveryMillis = unit.toMillis(discovery);
+    }
+
+    public DomainBridge(int maxBatch) {
+        this(maxBatch, 5, TimeUnit.SECONDS);
+    }
+
+    public DomainBridge() {
+        this(256);
+    }
+
+    /**
+     * Registers a named QoS profile, a JSON array of policies as produced by
+     * {@link QoSSerializer#toSerializable(QosPolicy[])}.
+     */
+    public void profile(String name, String policies) {
+        profiles.put(name, qosSerializer.fromSerializable(policies));
+    }
+
+    public <T> RouteStats route(String topic, Class<T> type, int fromDomain, int toDomain) {
+        return route(topic, type, fromDomain, toDomain, t -> true, null, null);
+    }
+
+    /**
+     * Forwards the samples of {@code topic} accepted by the filter from one
+     * domain to the other. The reader and writer take the reliability,
+     * durability, history and other policies of the topic, then the policies
+     * of their profile if not null.
+     */
+    public <T> RouteStats route(String topic, Class<T> type, int fromDomain, int toDomain, Predicate<T> filter,
+                                String readerProfile, String writerProfile) {
+        if (fromDomain == toDomain) {
+            throw new IllegalArgumentException("A route needs two different domains");
+        }
+        final Domain from = domain(fromDomain);
+        final Domain to = domain(toDomain);
+        final RouteStats stats = new RouteStats(topic + ":" + fromDomain + "->" + toDomain);
+
+        final Topic<T> source = topic(from, topic, type, null);
+        final Topic<T> target = topic(to, topic, type, source.getQos());
+        DataReaderQos rqos = from.sub.copyFromTopicQos(from.sub.getDefaultDataReaderQos(), source.getQos());
+        if (readerProfile != null) {
+            rqos = rqos.withPolicies(Arrays.stream(profile(readerProfile))
+                    .filter(p -> p instanceof QosPolicy.ForDataReader)
+                    .map(p -> (QosPolicy.ForDataReader) p)
+                    .toArray(QosPolicy.ForDataReader[]::new));
+        }
+        DataWriterQos wqos = to.pub.copyFromTopicQos(to.pub.getDefaultDataWriterQos(), source.getQos());
+        if (writerProfile != null) {
+            wqos = wqos.withPolicies(Arrays.stream(profile(writerProfile))
+                    .filter(p -> p instanceof QosPolicy.ForDataWriter)
+                    .map(p -> (QosPolicy.ForDataWriter) p)
+                    .toArray(QosPolicy.ForDataWriter[]::new));
+        }
+
+        final DataWriter<T> writer = to.pub.createDataWriter(target, wqos);
+        to.bridgeWriters.put(writer.getInstanceHandle(), fromDomain);
+        final DataReader<T> reader = from.sub.createDataReader(source, rqos);
+        reader.setListener(new BaseDataReaderListener<T>() {
+            @Override
+            public void onDataAvailable(DataAvailableEvent<T> status) {
+                forward(reader, writer, from, to, filter, stats);
+            }
+        });
+        readers.add(reader);
+        routes.add(stats);
+        return stats;
+    }
+
+    private <T> void forward(DataReader<T> reader, DataWriter<T> writer, Domain from, Domain to,
+                             Predicate<T> filter, RouteStats stats) {
+        final List<Sample<T>> samples = new ArrayList<>(maxBatch);
+        final Map<InstanceHandle, Sample<T>> notAlive = new LinkedHashMap<>();
+        do {
+            samples.clear();
+            reader.select().maxSamples(maxBatch).take(samples);
+            if (samples.isEmpty()) {
+                return;
+            }
+            notAlive.clear();
+            to.pub.suspendPublications();
+            try {
+                for (Sample<T> s : samples) {
+                    final Integer origin = from.bridgeWriters.get(s.getPublicationHandle());
+                    if (origin != null && origin == to.id) {
+                        stats.suppressed.increment();
+                        continue;
+                    }
+                    if (s.getInstanceState() == InstanceState.ALIVE) {
+                        notAlive.remove(s.getInstanceHandle());
+                    } else {
+                        // mirrored once the data of the batch is written
+                        notAlive.put(s.getInstanceHandle(), s);
+                    }
+                    final T data = s.getData();
+                    if (data == null) {
+                        continue;
+                    }
+                    if (!filter.test(data)) {
+                        stats.filtered.increment();
+                        continue;
+                    }
+                    try {
+                        writer.write(data, s.getSourceTimestamp());
+                        stats.forwarded.increment();
+                        stats.throughput.increment();
+                        final long lag = System.currentTimeMillis() - s.getSourceTimestamp().getTime(TimeUnit.MILLISECONDS);
+                        stats.lastLagMillis.set(lag);
+                        stats.maxLagMillis.accumulateAndGet(lag, Math::max);
+                    } catch (TimeoutException e) {
+                        stats.failed.increment();
+                    }
+                }
+                for (Sample<T> s : notAlive.values()) {
+                    mirrorInstanceState(reader, writer, s, stats);
+                }
+            } finally {
+                to.pub.resumePublications();
+            }
+            stats.batches.increment();
+        } while (samples.size() == maxBatch);
+    }
+
+    private <T> void mirrorInstanceState(DataReader<T> reader, DataWriter<T> writer, Sample<T> s, RouteStats stats) {
+        final T key = reader.getKeyValue(s.getInstanceHandle());
+        final InstanceHandle handle = writer.lookupInstance(key);
+        if (handle.isNil()) {
+            // never forwarded, or filtered out
+            return;
+        }
+        try {
+            if (s.getInstanceState() == InstanceState.NOT_ALIVE_DISPOSED) {
+                writer.dispose(handle, key, s.getSourceTimestamp());
+            } else {
+                writer.unregisterInstance(handle, key, s.getSourceTimestamp());
+            }
+            stats.instanceStates.increment();
+        } catch (TimeoutException e) {
+            stats.failed.increment();
+        }
+    }
+
+    private QosPolicy[] profile(String name) {
+        final QosPolicy[] p = profiles.get(name);
+        if (p == null) {
+            throw new IllegalArgumentException("Unknown QoS profile " + name);
+        }
+        return p;
+    }
+
+    private Domain domain(int id) {
+        return domains.computeIfAbsent(id, d -> d == VConfig.DOMAIN ?
+                new Domain(d, VConfig.DefaultEntities.defaultDomainParticipant(), false) :
+                new Domain(d, DomainParticipantFactory.getInstance(VConfig.ENV).createParticipant(d), true));
+    }
+
+    /**
+     * Finds the topic as declared on the domain, or creates it with the
+     * given QoS, the default one when null.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Topic<T> topic(Domain domain, String name, Class<T> type, TopicQos qos) {
+        return (Topic<T>) domain.topics.computeIfAbsent(name, n -> {
+            try {
+                return domain.dp.<T>findTopic(n, qos == null ? discoveryMillis : 0, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return qos == null ? domain.dp.createTopic(n, type) : domain.dp.createTopic(n, type, qos, null);
+            }
+        });
+    }
+
+    public List<RouteStats> routes() {
+        return Collections.unmodifiableList(routes);
+    }
+
+    @Override
+    public void close() {
+        readers.forEach(DataReader::close);
+        readers.clear();
+        domains.values().forEach(d -> {
+            if (d.owned) {
+                d.dp.close();
+            } else {
+                d.pub.close();
+                d.sub.close();
+            }
+        });
+        domains.clear();
+    }
+}
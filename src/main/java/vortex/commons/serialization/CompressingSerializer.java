@@ -0,0 +1,305 @@
+package vortex.commons.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decorates a {@link Serializer} with payload compression.
+ * <p/>
+ * The output is a byte array starting with a one byte header: the low nibble
+ * holds the id of the codec used ({@link #NONE} when stored as is), the high
+ * nibble whether the wrapped serializer produced bytes or a string, the only
+ * forms supported so that no Java deserialization ever runs on received
+ * payloads.
+ * Payloads below the size threshold or above the maximum length of the codec
+ * are never compressed, and compression is
+ * switched off while the sampled compression ratio does not pay for it. One
+ * payload every {@code probeInterval} is still compressed to notice when it
+ * starts paying again.
+ */
+public class CompressingSerializer<T> implements Serializer<T> {
+
+    public interface Codec {
+        /**
+         * The id stored in the header, between 1 and 15.
+         */
+        int id();
+
+        byte[] compress(byte[] data);
+
+        byte[] decompress(byte[] data);
+
+        /**
+         * The largest payload the codec handles, larger ones are stored as is.
+         */
+        default int maxLength() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    private static final int FORM_BYTES = 0;
+    private static final int FORM_STRING = 1;
+
+    /**
+     * Pure Java Deflate, the original length is stored in front of the
+     * compressed data and must not exceed {@code maxLength}, which bounds
+     * what a forged payload can make the receiver allocate.
+     */
+    public static class DeflateCodec implements Codec {
+        private final int level;
+        private final int maxLength;
+
+        public DeflateCodec(int level, int maxLength) {
+            this.level = level;
+            this.maxLength = maxLength;
+        }
+
+        public DeflateCodec(int level) {
+            this(level, 64 * 1024 * 1024);
+        }
+
+        public DeflateCodec() {
+            this(Deflater.BEST_SPEED);
+        }
+
+        @Override
+        public int id() {
+            return DEFLATE;
+        }
+
+        @Override
+        public int maxLength() {
+            return maxLength;
+        }
+
+        @Override
+        public byte[] compress(byte[] data) {
+            if (data.length > maxLength) {
+                throw new IllegalArgumentException("Payload of " + data.length + " bytes exceeds " + maxLength);
+            }
+            // native zlib state, released right away rather than on finalization
+            final Deflater d = new Deflater(level);
+            try {
+                d.setInput(data);
+                d.finish();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+                out.write(data.length >>> 24);
+                out.write(data.length >>> 16);
+                out.write(data.length >>> 8);
+                out.write(data.length);
+                final byte[] buf = new byte[Math.min(64 * 1024, Math.max(64, data.length))];
+                while (!d.finished()) {
+                    out.write(buf, 0, d.deflate(buf));
+                }
+                return out.toByteArray();
+            } finally {
+                d.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] data) {
+            if (data.length < 4) {
+                throw new IllegalArgumentException("Truncated compressed payload");
+            }
+            final int length = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+            if (length < 0 || length > maxLength) {
+                throw new IllegalArgumentException("Invalid decompressed length " + length + ", the maximum is " + maxLength);
+            }
+            final byte[] result = new byte[length];
+            final Inflater i = new Inflater();
+            i.setInput(data, 4, data.length - 4);
+            try {
+                int n = 0;
+                while (n < length && !i.finished()) {
+                    final int read = i.inflate(result, n, length - n);
+                    if (read == 0 && (i.needsInput() || i.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                if (n != length) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupted compressed payload", e);
+            } finally {
+                i.end();
+            }
+            return result;
+        }
+    }
+
+    private final Serializer<T> delegate;
+    private final Codec codec;
+    private final int threshold;
+    private final double minSaving;
+    private final int probeInterval;
+
+    private volatile double ratio = 0;
+    private volatile boolean paying = true;
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder uncompressed = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder decompressNanos = new LongAdder();
+
+    /**
+     * @param threshold     payloads smaller than this many bytes are stored as is
+     * @param minSaving     the fraction of bytes compression has to save, e.g. 0.1
+     * @param probeInterval while compression does not pay, compress one in that many payloads
+     */
+    public CompressingSerializer(Serializer<T> delegate, Codec codec, int threshold, double minSaving, int probeInterval) {
+        if (codec.id() <= NONE || codec.id() > 0x0f) {
+            throw new IllegalArgumentException("Codec ids must be between 1 and 15");
+        }
+        this.delegate = Objects.requireNonNull(delegate);
+        this.codec = codec;
+        this.threshold = threshold;
+        this.minSaving = minSaving;
+        this.probeInterval = Math.max(1, probeInterval);
+    }
+
+    public CompressingSerializer(Serializer<T> delegate) {
+        this(delegate, new DeflateCodec(), 512, 0.1, 64);
+    }
+
+    @Override
+    public Serializable toSerializable(T objectToSerialize) {
+        final Serializable s = delegate.toSerializable(objectToSerialize);
+        final int form;
+        final byte[] raw;
+        if (s instanceof byte[]) {
+            form = FORM_BYTES;
+            raw = (byte[]) s;
+        } else if (s instanceof String) {
+            form = FORM_STRING;
+            raw = ((String) s).getBytes(StandardCharsets.UTF_8);
+        } else {
+            throw new IllegalArgumentException("Only byte[] and String serializers can be compressed, got " + s.getClass());
+        }
+
+        byte[] payload = raw;
+        int codecId = NONE;
+        if (raw.length >= threshold && raw.length <= codec.maxLength() && (paying || skipped.incrementAndGet() % probeInterval == 0)) {
+            final long start = System.nanoTime();
+            final byte[] c = codec.compress(raw);
+            compressNanos.add(System.nanoTime() - start);
+            sample((double) c.length / raw.length);
+            if (c.length < raw.length) {
+                payload = c;
+                codecId = codec.id();
+            }
+        }
+
+        bytesIn.add(raw.length);
+        bytesOut.add(payload.length);
+        if (codecId == NONE) {
+            uncompressed.increment();
+        } else {
+            compressed.increment();
+        }
+
+        final byte[] result = new byte[payload.length + 1];
+        result[0] = (byte) ((form << 4) | codecId);
+        System.arraycopy(payload, 0, result, 1, payload.length);
+        return result;
+    }
+
+    private void sample(double r) {
+        // exponential moving average, weighted on the last 16 samples or so
+        final double avg = ratio == 0 ? r : ratio + (r - ratio) / 16;
+        ratio = avg;
+        paying = avg <= 1 - minSaving;
+    }
+
+    @Override
+    public boolean canDeserialize(Serializable serializedObject) {
+        if (!(serializedObject instanceof byte[]) || ((byte[]) serializedObject).length == 0) {
+            return false;
+        }
+        final int header = ((byte[]) serializedObject)[0];
+        final int codecId = header & 0x0f;
+        final int form = (header >> 4) & 0x0f;
+        return (codecId == NONE || codecId == codec.id()) && form <= FORM_STRING;
+    }
+
+    @Override
+    public T fromSerializable(Serializable serializedObject) {
+        if (!canDeserialize(serializedObject)) {
+            throw new IllegalArgumentException("Not produced by a compatible CompressingSerializer");
+        }
+        final byte[] data = (byte[]) serializedObject;
+        final int codecId = data[0] & 0x0f;
+        final int form = (data[0] >> 4) & 0x0f;
+        byte[] raw = new byte[data.length - 1];
+        System.arraycopy(data, 1, raw, 0, raw.length);
+        if (codecId != NONE) {
+            final long start = System.nanoTime();
+            raw = codec.decompress(raw);
+            decompressNanos.add(System.nanoTime() - start);
+        }
+
+        switch (form) {
+            case FORM_BYTES:
+                return delegate.fromSerializable(raw);
+            default:
+                return delegate.fromSerializable(new String(raw, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Whether the sampled ratio currently makes compression worth it.
+     */
+    public boolean isCompressing() {
+        return paying;
+    }
+
+    /**
+     * The moving average of compressed over original size.
+     */
+    public double ratio() {
+        return ratio;
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long bytesSaved() {
+        return bytesIn.sum() - bytesOut.sum();
+    }
+
+    public long compressed() {
+        return compressed.sum();
+    }
+
+    public long uncompressed() {
+        return uncompressed.sum();
+    }
+
+    public long compressNanos() {
+        return compressNanos.sum();
+    }
+
+    public long decompressNanos() {
+        return decompressNanos.sum();
+    }
+}
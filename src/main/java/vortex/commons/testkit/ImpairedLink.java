@@ -0,0 +1,308 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.testkit;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * A local UDP relay emulating an imperfect network between the DDS runtimes
+ * of two processes on the same host.
+ * <p/>
+ * Datagrams received on the relay port are forwarded to the target, and the
+ * replies of the target are sent back to their origin through one upstream
+ * socket per origin. Every datagram is dropped with the loss ratio, or
+ * delayed by the latency plus a uniform jitter, which may reorder datagrams
+ * as on a real network, and by its serialization time on a link of the
+ * given bandwidth. Datagrams that would wait more than half a second for the
+ * link are tail dropped as by a router with a full buffer.
+ * <p/>
+ * Only the traffic the runtime sends to the relay port is impaired, so the
+ * runtime of one side must be configured to reach its peers through unicast
+ * on the relay port rather than through multicast discovery. Runtimes that
+ * send user data to the locators advertised during discovery bypass the
+ * relay, which shows as a {@link #forwarded()} count far below the traffic.
+ */
+public final class ImpairedLink implements AutoCloseable {
+
+    public static final class Impairment {
+        final long latencyNanos;
+        final long jitterNanos;
+        final double loss;
+        final long bitsPerSecond;
+
+        private Impairment(long latencyNanos, long jitterNanos, double loss, long bitsPerSecond) {
+            if (loss < 0 || loss > 1) {
+                throw new IllegalArgumentException("The loss ratio must be within [0, 1]");
+            }
+            this.latencyNanos = latencyNanos;
+            this.jitterNanos = jitterNanos;
+            this.loss = loss;
+            this.bitsPerSecond = bitsPerSecond;
+        }
+
+        public static Impairment none() {
+            return new Impairment(0, 0, 0, 0);
+        }
+
+        /**
+         * @param bitsPerSecond zero for an unlimited bandwidth
+         */
+        public static Impairment of(long latency, long jitter, TimeUnit unit, double loss, long bitsPerSecond) {
+            return new Impairment(unit.toNanos(latency), unit.toNanos(jitter), loss, bitsPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%.1fms jitter=%.1fms loss=%.2f%% bandwidth=%s",
+                    latencyNanos / 1e6, jitterNanos / 1e6, loss * 100,
+                    bitsPerSecond == 0 ? "unlimited" : bitsPerSecond / 1e6 + "Mbit/s");
+        }
+    }
+
+    private static final long MAX_QUEUE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_DATAGRAM = 64 * 1024;
+
+    private static final class Datagram implements Delayed {
+        final ByteBuffer data;
+        final DatagramChannel via;
+        final SocketAddress to;
+        final long due;
+
+        Datagram(ByteBuffer data, DatagramChannel via, SocketAddress to, long due) {
+            this.data = data;
+            this.via = via;
+            this.to = to;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(due, ((Datagram) o).due);
+        }
+    }
+
+    private final SocketAddress target;
+    private final DatagramChannel relay;
+    private final Selector selector;
+    private final Map<SocketAddress, DatagramChannel> upstreams = new HashMap<>();
+    private final DelayQueue<Datagram> inFlight = new DelayQueue<>();
+    private final Thread receiver;
+    private final Thread sender;
+    private volatile Impairment impairment = Impairment.none();
+    private volatile boolean running = true;
+    // only touched by the receiver thread, one per direction
+    private long upstreamFreeAt = 0;
+    private long downstreamFreeAt = 0;
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile Consumer<IOException> errorHandler = e -> { };
+
+    public ImpairedLink(int port, InetSocketAddress target) throws IOException {
+        this.target = target;
+        this.selector = Selector.open();
+        this.relay = DatagramChannel.open().bind(new InetSocketAddress(port));
+        relay.configureBlocking(false);
+        relay.register(selector, SelectionKey.OP_READ);
+        this.receiver = new Thread(this::receive, "vortex-impaired-link-rx");
+        this.sender = new Thread(this::send, "vortex-impaired-link-tx");
+        receiver.setDaemon(true);
+        sender.setDaemon(true);
+        receiver.start();
+        sender.start();
+    }
+
+    /**
+     * Applies to the datagrams received from now on.
+     */
+    public void setImpairment(Impairment i) {
+        impairment = i;
+    }
+
+    public Impairment impairment() {
+        return impairment;
+    }
+
+    public long forwarded() {
+        return forwarded.sum();
+    }
+
+    /**
+     * Datagrams dropped by the emulated loss.
+     */
+    public long lost() {
+        return lost.sum();
+    }
+
+    /**
+     * Datagrams dropped because the bandwidth was exhausted.
+     */
+    public long overflows() {
+        return overflows.sum();
+    }
+
+    public long bytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Socket errors met while relaying, each also reported to the
+     * {@link #setErrorHandler(Consumer) error handler}.
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    public void setErrorHandler(Consumer<IOException> handler) {
+        errorHandler = handler;
+    }
+
+    private void error(IOException e) {
+        errors.increment();
+        errorHandler.accept(e);
+    }
+
+    private void receive() {
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        try {
+            while (running) {
+                selector.select();
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final DatagramChannel channel = (DatagramChannel) key.channel();
+                    try {
+                        SocketAddress from;
+                        while ((from = channel.receive(buffer)) != null) {
+                            buffer.flip();
+                            if (key.attachment() == null) {
+                                // from an origin towards the target
+                                upstreamFreeAt = impair(buffer, upstream(from), target, upstreamFreeAt);
+                            } else {
+                                downstreamFreeAt = impair(buffer, relay, (SocketAddress) key.attachment(), downstreamFreeAt);
+                            }
+                            buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        // a single datagram or origin, keep relaying the others
+                        buffer.clear();
+                        if (running) {
+                            error(e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                error(e);
+            }
+        } catch (ClosedSelectorException e) {
+            // closed
+        }
+    }
+
+    private DatagramChannel upstream(SocketAddress origin) throws IOException {
+        DatagramChannel c = upstreams.get(origin);
+        if (c == null) {
+            c = DatagramChannel.open().bind(null);
+            c.configureBlocking(false);
+            c.register(selector, SelectionKey.OP_READ, origin);
+            upstreams.put(origin, c);
+        }
+        return c;
+    }
+
+    /**
+     * Schedules the datagram and returns when the link is free again.
+     */
+    private long impair(ByteBuffer buffer, DatagramChannel via, SocketAddress to, long linkFreeAt) {
+        final Impairment i = impairment;
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (i.loss > 0 && random.nextDouble() < i.loss) {
+            lost.increment();
+            return linkFreeAt;
+        }
+        final long now = System.nanoTime();
+        long departure = now;
+        if (i.bitsPerSecond > 0) {
+            final long start = Math.max(now, linkFreeAt);
+            if (start - now > MAX_QUEUE_NANOS) {
+                overflows.increment();
+                return linkFreeAt;
+            }
+            departure = start + buffer.remaining() * 8L * TimeUnit.SECONDS.toNanos(1) / i.bitsPerSecond;
+            linkFreeAt = departure;
+        }
+        final long jitter = i.jitterNanos > 0 ? random.nextLong(-i.jitterNanos, i.jitterNanos + 1) : 0;
+        final long due = departure + Math.max(0, i.latencyNanos + jitter);
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer).flip();
+        inFlight.add(new Datagram(copy, via, to, due));
+        return linkFreeAt;
+    }
+
+    private void send() {
+        while (running) {
+            try {
+                final Datagram d = inFlight.take();
+                bytes.add(d.data.remaining());
+                d.via.send(d.data, d.to);
+                forwarded.increment();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    error(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        sender.interrupt();
+        selector.close();
+        relay.close();
+        for (DatagramChannel c : upstreams.values()) {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.testkit;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link LoadTest} for every idiom kind under a series of network
+ * conditions emulated by an {@link ImpairedLink}, and prints a single JSON
+ * report with the throughput, delivery ratio and round trip latency
+ * percentiles of each combination.
+ * <pre>
+ * java -Ddds.runtime=cafe vortex.commons.testkit.ImpairmentScenarios \
+ *      --relay 7450 --target localhost:7400 --scenarios lan,wifi,wan,lossy \
+ *      --kinds soft,hard,event --codec my.LoadCodec --rate 5000 --duration 20 --pings 2000
+ * </pre>
+ * Scenarios are either built in or given inline as
+ * {@code name=latencyMs:jitterMs:lossPercent:mbps}, a bandwidth of zero
+ * meaning unlimited. Every option other than the ones above is passed to
+ * {@link LoadTest}, and the DDS runtime of its processes must be configured
+ * to reach each other through the relay port, see {@link ImpairedLink}.
+ * <p/>
+ * A run whose relay forwarded fewer bytes than {@code --minRelayRatio} times
+ * the payload bytes sent, 0.1 by default, most likely bypassed the relay.
+ * Bytes are compared rather than datagrams, as the middleware packs many
+ * small samples into one datagram. It is
+ * flagged as such in the report, and the exit status is then 2, so that
+ * unimpaired numbers are not mistaken for impaired ones.
+ */
+public final class ImpairmentScenarios {
+
+    private static final Map<String, ImpairedLink.Impairment> BUILT_IN = new LinkedHashMap<>();
+
+    static {
+        BUILT_IN.put("loopback", ImpairedLink.Impairment.none());
+        BUILT_IN.put("lan", ImpairedLink.Impairment.of(200, 100, TimeUnit.MICROSECONDS, 0, 1_000_000_000L));
+        BUILT_IN.put("wifi", ImpairedLink.Impairment.of(3, 2, TimeUnit.MILLISECONDS, 0.01, 50_000_000L));
+        BUILT_IN.put("wan", ImpairedLink.Impairment.of(40, 10, TimeUnit.MILLISECONDS, 0.001, 100_000_000L));
+        BUILT_IN.put("lossy", ImpairedLink.Impairment.of(20, 5, TimeUnit.MILLISECONDS, 0.05, 10_000_000L));
+    }
+
+    private ImpairmentScenarios() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final LoadTest.Options options = new LoadTest.Options(args);
+        final String target = options.get("target", null);
+        if (target == null || target.indexOf(':') < 0) {
+            throw new IllegalArgumentException("The relayed address must be given with --target <host>:<port>");
+        }
+        final InetSocketAddress to = new InetSocketAddress(
+                target.substring(0, target.lastIndexOf(':')),
+                Integer.parseInt(target.substring(target.lastIndexOf(':') + 1)));
+        final Map<String, ImpairedLink.Impairment> scenarios = scenarios(options.get("scenarios", String.join(",", BUILT_IN.keySet())));
+        final String[] kinds = options.get("kinds", "soft,hard,event").split(",");
+        final double minRelayRatio = Double.parseDouble(options.get("minRelayRatio", "0.1"));
+        final int payload = options.getInt("payload", 64);
+        boolean bypassed = false;
+
+        final JsonArray results = new JsonArray();
+        try (ImpairedLink link = new ImpairedLink(options.getInt("relay", 7450), to)) {
+            for (Map.Entry<String, ImpairedLink.Impairment> scenario : scenarios.entrySet()) {
+                for (String kind : kinds) {
+                    link.setImpairment(scenario.getValue());
+                    final long forwarded = link.forwarded();
+                    final long lost = link.lost();
+                    final long overflows = link.overflows();
+                    final long errors = link.errors();
+                    final long bytes = link.bytes();
+                    final JsonObject report = LoadTest.coordinate(loadTest(options, kind));
+
+                    final JsonObject r = new JsonObject();
+                    r.addProperty("scenario", scenario.getKey());
+                    r.addProperty("impairment", scenario.getValue().toString());
+                    r.addProperty("kind", kind);
+                    r.addProperty("samplesPerSecond", subscriberThroughput(report));
+                    r.add("deliveryRatio", report.get("deliveryRatio"));
+                    r.add("rttMicros", report.get("latency"));
+                    final JsonObject relay = new JsonObject();
+                    relay.addProperty("forwarded", link.forwarded() - forwarded);
+                    relay.addProperty("lost", link.lost() - lost);
+                    relay.addProperty("overflows", link.overflows() - overflows);
+                    relay.addProperty("errors", link.errors() - errors);
+                    r.add("datagrams", relay);
+                    final long relayed = link.bytes() - bytes;
+                    r.addProperty("relayedBytes", relayed);
+                    final long sent = report.has("sent") ? report.get("sent").getAsLong() * payload : 0;
+                    final boolean bypass = relayed < sent * minRelayRatio;
+                    r.addProperty("relayBypassed", bypass);
+                    if (bypass) {
+                        bypassed = true;
+                        System.err.println("Scenario " + scenario.getKey() + "/" + kind + ": only " + relayed +
+                                " bytes relayed for " + sent + " payload bytes sent, the traffic most likely bypassed the relay");
+                    }
+                    results.add(r);
+                }
+            }
+        }
+        final String json = new GsonBuilder().setPrettyPrinting().create().toJson(results);
+        System.out.println(json);
+        System.exit(bypassed ? 2 : 0);
+    }
+
+    static Map<String, ImpairedLink.Impairment> scenarios(String spec) {
+        final Map<String, ImpairedLink.Impairment> result = new LinkedHashMap<>();
+        for (String s : spec.split(",")) {
+            final int eq = s.indexOf('=');
+            if (eq < 0) {
+                final ImpairedLink.Impairment i = BUILT_IN.get(s);
+                if (i == null) {
+                    throw new IllegalArgumentException("Unknown scenario " + s + ", expected one of " + BUILT_IN.keySet());
+                }
+                result.put(s, i);
+            } else {
+                final String[] p = s.substring(eq + 1).split(":");
+                if (p.length != 4) {
+                    throw new IllegalArgumentException("Expected name=latencyMs:jitterMs:lossPercent:mbps, got " + s);
+                }
+                result.put(s.substring(0, eq), ImpairedLink.Impairment.of(
+                        (long) (Double.parseDouble(p[0]) * 1000), (long) (Double.parseDouble(p[1]) * 1000), TimeUnit.MICROSECONDS,
+                        Double.parseDouble(p[2]) / 100, (long) (Double.parseDouble(p[3]) * 1_000_000)));
+            }
+        }
+        return result;
+    }
+
+    private static LoadTest.Options loadTest(LoadTest.Options options, String kind) {
+        final LoadTest.Options o = new LoadTest.Options(new String[0]);
+        options.values.forEach((k, v) -> {
+            if (!k.equals("target") && !k.equals("relay") && !k.equals("scenarios") && !k.equals("kinds") && !k.equals("minRelayRatio")) {
+                o.values.put(k, v);
+            }
+        });
+        o.values.put("kind", kind);
+        return o;
+    }
+
+    private static double subscriberThroughput(JsonObject report) {
+        double total = 0;
+        for (JsonElement e : report.getAsJsonArray("processes")) {
+            final JsonObject p = e.getAsJsonObject();
+            if (p.get("role").getAsString().equals("sub") && p.has("samplesPerSecond")) {
+                total += p.get("samplesPerSecond").getAsDouble();
+            }
+        }
+        return total;
+    }
+}
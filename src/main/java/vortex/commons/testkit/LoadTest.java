@@ -0,0 +1,402 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.testkit;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.omg.dds.core.policy.Durability;
+import vortex.commons.util.Idiom;
+import vortex.commons.util.Idioms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A multi process load generator for {@link Idioms}.
+ * <p/>
+ * Run without a role, it spawns {@code --pubs} publisher and {@code --subs}
+ * subscriber processes on this host, plus a ping and a pong process when
+ * {@code --pings} is positive, waits for them and prints a single JSON report
+ * with their throughput and the round trip latency percentiles. Publishers
+ * wait up to {@code --matchTimeout} seconds, 10 by default, for every
+ * subscriber to match before they start writing.
+ * <pre>
+ * java -Ddds.runtime=cafe vortex.commons.testkit.LoadTest --codec my.LoadCodec \
+ *      --kind event --durability volatile --pubs 2 --subs 4 --keys 100 \
+ *      --payload 1024 --rate 10000 --duration 30 --pings 10000
+ * </pre>
+ * DDS types are generated from IDL, so the sample type is supplied by the
+ * application as a {@link Codec} with a public no argument constructor.
+ */
+public final class LoadTest {
+
+    public interface Codec<T> {
+        Class<T> type();
+
+        /**
+         * A sample of the given instance key carrying {@code payload} bytes.
+         */
+        T create(int key, long seq, long timestamp, int payload);
+
+        long seq(T sample);
+
+        long timestamp(T sample);
+    }
+
+    static final class Options {
+        final Map<String, String> values = new LinkedHashMap<>();
+
+        Options(String[] args) {
+            for (int i = 0; i < args.length; i++) {
+                if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Expected --option value pairs, got " + args[i]);
+                }
+                values.put(args[i].substring(2), args[++i]);
+            }
+        }
+
+        String get(String name, String def) {
+            return values.getOrDefault(name, def);
+        }
+
+        int getInt(String name, int def) {
+            return Integer.parseInt(get(name, Integer.toString(def)));
+        }
+
+        List<String> toArgs(String role, int id) {
+            final List<String> args = new ArrayList<>();
+            values.forEach((k, v) -> {
+                if (!k.equals("role") && !k.equals("id")) {
+                    args.add("--" + k);
+                    args.add(v);
+                }
+            });
+            args.addAll(Arrays.asList("--role", role, "--id", Integer.toString(id)));
+            return args;
+        }
+    }
+
+    private static final String[] PROPAGATED_PROPERTIES = {"dds.runtime", "dds.domain", "dds.service.environment"};
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new Options(args);
+        final String role = options.get("role", "coordinator");
+        final JsonObject result;
+        switch (role) {
+            case "coordinator":
+                result = coordinate(options);
+                break;
+            case "pub":
+                result = publish(options, codec(options));
+                break;
+            case "sub":
+                result = subscribe(options, codec(options));
+                break;
+            case "ping":
+                result = ping(options, codec(options));
+                break;
+            case "pong":
+                result = pong(options, codec(options));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown role " + role);
+        }
+        final String json = role.equals("coordinator") ?
+                new GsonBuilder().setPrettyPrinting().create().toJson(result) : result.toString();
+        System.out.println(json);
+        System.exit(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Codec<T> codec(Options options) throws ReflectiveOperationException {
+        final String name = options.get("codec", null);
+        if (name == null) {
+            throw new IllegalArgumentException("The sample type must be given with --codec <class>");
+        }
+        return (Codec<T>) Class.forName(name).getDeclaredConstructor().newInstance();
+    }
+
+    static <T> Idiom<T> idiom(Options options, String topic, Class<T> type) {
+        final Durability.Kind durability = Durability.Kind.valueOf(options.get("durability", "volatile").toUpperCase());
+        final int history = options.getInt("history", 1);
+        switch (options.get("kind", "event")) {
+            case "soft":
+                return new Idioms.SoftState<>(topic, type, history);
+            case "hard":
+                return new Idioms.HardState<>(topic, type, durability, history);
+            case "event":
+                return new Idioms.Event<>(topic, type, durability);
+            default:
+                throw new IllegalArgumentException("--kind must be one of soft, hard or event");
+        }
+    }
+
+    static JsonObject coordinate(Options options) throws IOException, InterruptedException {
+        final List<Process> processes = new ArrayList<>();
+        final List<String> roles = new ArrayList<>();
+        final int subs = options.getInt("subs", 1);
+        final int pubs = options.getInt("pubs", 1);
+        // subscribers first so they match before the publishers start
+        for (int i = 0; i < subs; i++) {
+            processes.add(spawn(options, "sub", i));
+            roles.add("sub");
+        }
+        if (options.getInt("pings", 0) > 0) {
+            processes.add(spawn(options, "pong", 0));
+            roles.add("pong");
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.getInt("settle", 2)));
+        for (int i = 0; i < pubs; i++) {
+            processes.add(spawn(options, "pub", i));
+            roles.add("pub");
+        }
+        if (options.getInt("pings", 0) > 0) {
+            processes.add(spawn(options, "ping", 0));
+            roles.add("ping");
+        }
+
+        final JsonObject report = new JsonObject();
+        final JsonObject config = new JsonObject();
+        options.values.forEach(config::addProperty);
+        report.add("config", config);
+        final JsonArray results = new JsonArray();
+        long sent = 0;
+        long received = 0;
+        for (int i = 0; i < processes.size(); i++) {
+            final JsonObject r = collect(processes.get(i));
+            r.addProperty("role", roles.get(i));
+            results.add(r);
+            if (r.has("sent")) {
+                sent += r.get("sent").getAsLong();
+            }
+            if (r.has("received")) {
+                received += r.get("received").getAsLong();
+            }
+            if (roles.get(i).equals("ping")) {
+                report.add("latency", r.get("rttMicros"));
+            }
+        }
+        report.addProperty("sent", sent);
+        report.addProperty("received", received);
+        report.addProperty("deliveryRatio", sent == 0 ? 0 : (double) received / (sent * Math.max(1, subs)));
+        report.add("processes", results);
+        return report;
+    }
+
+    private static Process spawn(Options options, String role, int id) throws IOException {
+        final List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String p : PROPAGATED_PROPERTIES) {
+            if (System.getProperty(p) != null) {
+                command.add("-D" + p + "=" + System.getProperty(p));
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadTest.class.getName());
+        command.addAll(options.toArgs(role, id));
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    private static JsonObject collect(Process p) throws IOException, InterruptedException {
+        String last = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("{")) {
+                    last = line;
+                }
+            }
+        }
+        final int exit = p.waitFor();
+        if (last == null) {
+            final JsonObject failure = new JsonObject();
+            failure.addProperty("exitCode", exit);
+            return failure;
+        }
+        return new JsonParser().parse(last).getAsJsonObject();
+    }
+
+    private static <T> JsonObject publish(Options options, Codec<T> codec) throws InterruptedException {
+        final Idiom<T> idiom = idiom(options, options.get("topic", "LoadTest"), codec.type());
+        final int keys = options.getInt("keys", 1);
+        final int payload = options.getInt("payload", 64);
+        final int rate = options.getInt("rate", 0);
+        final long duration = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        final int id = options.getInt("id", 0);
+
+        // samples written before the subscribers match are lost on volatile topics
+        boolean matched = true;
+        try {
+            idiom.warmUp(options.getInt("subs", 1), -1, options.getInt("matchTimeout", 10), TimeUnit.SECONDS).get();
+        } catch (ExecutionException e) {
+            matched = false;
+        }
+
+        long sent = 0;
+        long timeouts = 0;
+        final long start = System.nanoTime();
+        final long period = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long next = start;
+        while (System.nanoTime() - start < duration) {
+            if (period > 0) {
+                next += period;
+                final long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            try {
+                idiom.write(codec.create(id * keys + (int) (sent % keys), sent, System.nanoTime(), payload));
+                sent++;
+            } catch (TimeoutException e) {
+                timeouts++;
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final JsonObject r = new JsonObject();
+        r.addProperty("sent", sent);
+        r.addProperty("matched", matched);
+        r.addProperty("timeouts", timeouts);
+        r.addProperty("samplesPerSecond", sent / seconds);
+        r.addProperty("bytesPerSecond", sent * payload / seconds);
+        return r;
+    }
+
+    private static <T> JsonObject subscribe(Options options, Codec<T> codec) throws InterruptedException {
+        final Idiom<T> idiom = idiom(options, options.get("topic", "LoadTest"), codec.type());
+        final LongAdder received = new LongAdder();
+        final AtomicLong first = new AtomicLong();
+        final AtomicLong last = new AtomicLong();
+        idiom.consume(s -> {
+            // the tail of exited publishers arrives as not alive, still valid data
+            if (s.getData() != null) {
+                final long now = System.nanoTime();
+                first.compareAndSet(0, now);
+                last.set(now);
+                received.increment();
+            }
+        });
+        // outlive the publishers by the settle time so the tail is counted
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.getInt("duration", 10) + 2L * options.getInt("settle", 2)));
+        // over the window samples were arriving in, not the waits around it
+        final double seconds = (last.get() - first.get()) / 1e9;
+        final JsonObject r = new JsonObject();
+        r.addProperty("received", received.sum());
+        r.addProperty("samplesPerSecond", seconds > 0 ? received.sum() / seconds : 0);
+        return r;
+    }
+
+    private static <T> JsonObject pong(Options options, Codec<T> codec) throws InterruptedException {
+        final String topic = options.get("topic", "LoadTest");
+        final Idiom<T> pings = idiom(options, topic + "Ping", codec.type());
+        final Idiom<T> pongs = idiom(options, topic + "Pong", codec.type());
+        final LongAdder echoed = new LongAdder();
+        pings.consume(s -> {
+            if (s.getData() != null) {
+                try {
+                    pongs.write(s.getData());
+                    echoed.increment();
+                } catch (TimeoutException e) {
+                    // the pinger accounts for it as a lost round trip
+                }
+            }
+        });
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.getInt("duration", 10) + 2L * options.getInt("settle", 2)));
+        final JsonObject r = new JsonObject();
+        r.addProperty("echoed", echoed.sum());
+        return r;
+    }
+
+    private static <T> JsonObject ping(Options options, Codec<T> codec) throws InterruptedException {
+        final String topic = options.get("topic", "LoadTest");
+        final Idiom<T> pings = idiom(options, topic + "Ping", codec.type());
+        final Idiom<T> pongs = idiom(options, topic + "Pong", codec.type());
+        final int count = options.getInt("pings", 1000);
+        final int payload = options.getInt("payload", 64);
+        final long timeout = options.getInt("pingTimeoutMillis", 1000);
+        final BlockingQueue<T> replies = new ArrayBlockingQueue<>(16);
+        pongs.consume(s -> {
+            if (s.getData() != null) {
+                replies.offer(s.getData());
+            }
+        });
+
+        final long[] rtt = new long[count];
+        int completed = 0;
+        int lost = 0;
+        for (long seq = 0; seq < count; seq++) {
+            final long sentAt = System.nanoTime();
+            try {
+                pings.write(codec.create(0, seq, sentAt, payload));
+            } catch (TimeoutException e) {
+                lost++;
+                continue;
+            }
+            T reply;
+            while ((reply = replies.poll(timeout, TimeUnit.MILLISECONDS)) != null && codec.seq(reply) != seq) {
+                // a late reply to an earlier ping, already counted as lost
+            }
+            if (reply == null) {
+                lost++;
+            } else {
+                rtt[completed++] = System.nanoTime() - codec.timestamp(reply);
+            }
+        }
+
+        final long[] done = Arrays.copyOf(rtt, completed);
+        Arrays.sort(done);
+        final JsonObject latency = new JsonObject();
+        latency.addProperty("min", percentile(done, 0));
+        latency.addProperty("p50", percentile(done, 50));
+        latency.addProperty("p90", percentile(done, 90));
+        latency.addProperty("p99", percentile(done, 99));
+        latency.addProperty("p999", percentile(done, 99.9));
+        latency.addProperty("max", percentile(done, 100));
+        final JsonObject r = new JsonObject();
+        r.addProperty("pings", count);
+        r.addProperty("lost", lost);
+        r.add("rttMicros", latency);
+        return r;
+    }
+
+    /**
+     * The percentile in microseconds, null when nothing was measured as NaN is
+     * not valid JSON.
+     */
+    static Double percentile(long[] sortedNanos, double p) {
+        if (sortedNanos.length == 0) {
+            return null;
+        }
+        final int i = (int) Math.min(sortedNanos.length - 1, Math.ceil(p / 100 * sortedNanos.length) - 1);
+        return sortedNanos[Math.max(0, i)] / 1000.0;
+    }
+}
@@ -0,0 +1,447 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.policy.Durability;
+import org.omg.dds.domain.DomainParticipant;
+import org.omg.dds.pub.Publisher;
+import org.omg.dds.sub.InstanceState;
+import org.omg.dds.sub.Sample;
+import org.omg.dds.sub.Subscriber;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Streams large payloads as a sequence of fixed size chunk samples on the
+ * {@code name + "Chunk"} event topic.
+ * <p/>
+ * The sender waits for the chunks of a window to be acknowledged by the
+ * matched readers before writing the next window, so a blob never floods the
+ * middleware buffers shared with the other topics of the participant. The
+ * receiver copies every chunk straight into its place in a pooled direct
+ * buffer. Chunks still missing once a stream stalls are requested again on
+ * the {@code name + "Nack"} topic and only those are retransmitted.
+ * <p/>
+ * As DDS types are generated from IDL, the chunk type is supplied by the
+ * application and accessed through a {@link ChunkCodec}. Every chunk carries
+ * the chunk size of its sender, so both sides need not be configured alike.
+ * Payloads are limited to {@link DirectBufferPool#MAX_CAPACITY} bytes, and a
+ * stream whose chunks are inconsistent is dropped as failed.
+ */
+public class BlobStream<C> implements AutoCloseable {
+
+    public interface ChunkCodec<C> {
+        C chunk(long streamId, int index, int count, int chunkSize, long length, byte[] data);
+
+        long streamId(C chunk);
+
+        int index(C chunk);
+
+        int count(C chunk);
+
+        int chunkSize(C chunk);
+
+        long length(C chunk);
+
+        byte[] data(C chunk);
+    }
+
+    /**
+     * A reassembled payload. Closing it hands the buffer back to the pool,
+     * the buffer must not be used afterwards.
+     */
+    public static class Blob implements AutoCloseable {
+        private final long streamId;
+        private final ByteBuffer buffer;
+        private final DirectBufferPool pool;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Blob(long streamId, ByteBuffer buffer, DirectBufferPool pool) {
+            this.streamId = streamId;
+            this.buffer = buffer;
+            this.pool = pool;
+        }
+
+        public long streamId() {
+            return streamId;
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    private interface ChunkSource {
+        void read(long position, ByteBuffer dst) throws IOException;
+    }
+
+    private static class Outgoing {
+        final ChunkSource source;
+        final int count;
+        final long length;
+
+        Outgoing(ChunkSource source, int count, long length) {
+            this.source = source;
+            this.count = count;
+            this.length = length;
+        }
+    }
+
+    private static class Incoming {
+        final ByteBuffer buffer;
+        final int count;
+        final int chunkSize;
+        final long length;
+        final BitSet received;
+        int missing;
+        int attempts;
+        // set once the buffer went back to the pool
+        boolean dropped;
+        long lastProgress;
+
+        Incoming(ByteBuffer buffer, int count, int chunkSize, long length) {
+            this.buffer = buffer;
+            this.count = count;
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.received = new BitSet(count);
+            this.missing = count;
+            this.lastProgress = System.nanoTime();
+        }
+    }
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final Idioms.Event<C> chunks;
+    private final Idioms.Event<C> nacks;
+    private final ChunkCodec<C> codec;
+    private final int chunkSize;
+    private final int window;
+    private final long ackTimeoutMillis;
+    private final long gapTimeoutMillis;
+    private final int maxAttempts;
+    private final DirectBufferPool pool;
+    private final AtomicLong sequence;
+    private final ConcurrentHashMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    // streams recently completed or given up on, so late retransmissions
+    // do not start them over
+    private final ConcurrentHashMap<Long, Long> finished = new ConcurrentHashMap<>();
+    private volatile boolean listening = false;
+    private final String name;
+    // gap checks write nacks, which may block, so they get their own thread
+    // rather than the shared timers
+    private final AtomicReference<ScheduledExecutorService> gapChecker = new AtomicReference<>(null);
+
+    private final LongAdder chunksSent = new LongAdder();
+    private final LongAdder chunksRetransmitted = new LongAdder();
+    private final LongAdder blobsReceived = new LongAdder();
+    private final LongAdder blobsFailed = new LongAdder();
+
+    public BlobStream(String name, Class<C> chunkType, ChunkCodec<C> codec, int chunkSize, int window,
+                      long ackTimeout, long gapTimeout, TimeUnit unit, int maxAttempts,
+                      DomainParticipant dp, Subscriber sub, Publisher pub) {
+        if (chunkSize < 1 || window < 1) {
+            throw new IllegalArgumentException("Chunk size and window must be positive");
+        }
+        this.name = name;
+        this.chunks = new Idioms.Event<>(name + "Chunk", chunkType, Durability.Kind.VOLATILE, dp, sub, pub);
+        this.nacks = new Idioms.Event<>(name + "Nack", chunkType, Durability.Kind.VOLATILE, dp, sub, pub);
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.ackTimeoutMillis = unit.toMillis(ackTimeout);
+        this.gapTimeoutMillis = unit.toMillis(gapTimeout);
+        this.maxAttempts = maxAttempts;
+        this.pool = new DirectBufferPool();
+        this.sequence = new AtomicLong(((long) ThreadLocalRandom.current().nextInt()) << 32);
+    }
+
+    public BlobStream(String name, Class<C> chunkType, ChunkCodec<C> codec, int chunkSize, int window) {
+        this(name, chunkType, codec, chunkSize, window, 10, 1, TimeUnit.SECONDS, 5,
+                VConfig.DefaultEntities.defaultDomainParticipant(), VConfig.DefaultEntities.defaultSub(), VConfig.DefaultEntities.defaultPub());
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer and returns the id of the stream.
+     * The payload is kept for retransmissions until {@link #release(long)}.
+     */
+    public long send(ByteBuffer payload) throws TimeoutException {
+        final ByteBuffer src = payload.duplicate();
+        final int base = src.position();
+        try {
+            return send(src.remaining(), (position, dst) -> {
+                final ByteBuffer view = src.duplicate();
+                view.position(base + (int) position);
+                view.limit(base + (int) position + dst.remaining());
+                dst.put(view);
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sends the content of the channel, which has to stay open until
+     * {@link #release(long)}.
+     */
+    public long send(FileChannel channel) throws IOException, TimeoutException {
+        return send(channel.size(), (position, dst) -> {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position()) < 0) {
+                    throw new IOException("Unexpected end of channel");
+                }
+            }
+        });
+    }
+
+    private long send(long length, ChunkSource source) throws IOException, TimeoutException {
+        if (length > DirectBufferPool.MAX_CAPACITY) {
+            // the receiver reassembles into a single pooled buffer
+            throw new IllegalArgumentException("Payloads are limited to " + DirectBufferPool.MAX_CAPACITY + " bytes, got " + length);
+        }
+        final long id = sequence.incrementAndGet();
+        final int count = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+        outgoing.put(id, new Outgoing(source, count, length));
+        listen();
+        for (int index = 0; index < count; index++) {
+            writeChunk(id, index, count, length, source);
+            chunksSent.increment();
+            if ((index + 1) % window == 0) {
+                chunks.writer().waitForAcknowledgments(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return id;
+    }
+
+    private void writeChunk(long id, int index, int count, long length, ChunkSource source) throws IOException, TimeoutException {
+        final long position = (long) index * chunkSize;
+        final byte[] data = new byte[(int) Math.min(chunkSize, length - position)];
+        source.read(position, ByteBuffer.wrap(data));
+        chunks.write(codec.chunk(id, index, count, chunkSize, length, data));
+    }
+
+    /**
+     * Forgets a sent payload, it can no longer be retransmitted.
+     */
+    public void release(long streamId) {
+        outgoing.remove(streamId);
+    }
+
+    private void listen() {
+        if (!listening) {
+            synchronized (this) {
+                if (!listening) {
+                    nacks.consume(this::onNack);
+                    listening = true;
+                }
+            }
+        }
+    }
+
+    private void onNack(Sample<C> s) {
+        final C nack = s.getData();
+        if (nack == null || s.getInstanceState() != InstanceState.ALIVE) {
+            return;
+        }
+        final Outgoing o = outgoing.get(codec.streamId(nack));
+        if (o == null) {
+            return;
+        }
+        try {
+            writeChunk(codec.streamId(nack), codec.index(nack), o.count, o.length, o.source);
+            chunksRetransmitted.increment();
+        } catch (IOException | TimeoutException e) {
+            // the receiver will ask again after its gap timeout
+        }
+    }
+
+    /**
+     * Reassembles the incoming streams and hands each complete blob to the
+     * consumer, which is responsible for closing it.
+     */
+    public void receive(Consumer<Blob> consumer) {
+        final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "vortex-blob-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        if (gapChecker.compareAndSet(null, checker)) {
+            checker.scheduleWithFixedDelay(this::checkGaps, gapTimeoutMillis, gapTimeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            checker.shutdown();
+        }
+        chunks.consume(s -> onChunk(s, consumer));
+    }
+
+    /**
+     * Stops checking incoming streams for gaps and drops the partially
+     * received ones. Blobs already handed out stay valid until closed.
+     */
+    @Override
+    public void close() {
+        final ScheduledExecutorService checker = gapChecker.getAndSet(null);
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        incoming.forEach((id, in) -> {
+            synchronized (in) {
+                if (incoming.remove(id, in)) {
+                    in.dropped = true;
+                    pool.release(in.buffer);
+                }
+            }
+        });
+        outgoing.clear();
+    }
+
+    private void onChunk(Sample<C> s, Consumer<Blob> consumer) {
+        final C chunk = s.getData();
+        if (chunk == null || s.getInstanceState() != InstanceState.ALIVE) {
+            return;
+        }
+        final long id = codec.streamId(chunk);
+        if (finished.containsKey(id)) {
+            return;
+        }
+        final long length = codec.length(chunk);
+        final int size = codec.chunkSize(chunk);
+        final int count = codec.count(chunk);
+        if (length < 0 || length > DirectBufferPool.MAX_CAPACITY || size < 1 ||
+                count != Math.max(1, (length + size - 1) / size)) {
+            // not a stream this side could ever reassemble
+            fail(id, incoming.get(id));
+            return;
+        }
+        final Incoming in = incoming.computeIfAbsent(id, k ->
+                new Incoming(pool.acquire((int) length), count, size, length));
+        final int index = codec.index(chunk);
+        final byte[] data = codec.data(chunk);
+        final boolean complete;
+        synchronized (in) {
+            if (in.dropped) {
+                return;
+            }
+            final long position = (long) index * in.chunkSize;
+            if (size != in.chunkSize || count != in.count || length != in.length ||
+                    index < 0 || index >= in.count || data == null ||
+                    data.length != Math.min(in.chunkSize, in.length - position)) {
+                fail(id, in);
+                return;
+            }
+            if (in.received.get(index)) {
+                return;
+            }
+            final ByteBuffer dst = in.buffer.duplicate();
+            dst.position((int) position);
+            dst.put(data);
+            in.received.set(index);
+            in.lastProgress = System.nanoTime();
+            complete = --in.missing == 0;
+        }
+        if (complete && incoming.remove(id, in)) {
+            finished.put(id, System.nanoTime());
+            blobsReceived.increment();
+            consumer.accept(new Blob(id, in.buffer, pool));
+        }
+    }
+
+    /**
+     * Gives up on a stream, releasing its buffer unless another thread
+     * already did.
+     */
+    private void fail(long id, Incoming in) {
+        if (in == null) {
+            finished.put(id, System.nanoTime());
+            blobsFailed.increment();
+            return;
+        }
+        synchronized (in) {
+            if (incoming.remove(id, in)) {
+                finished.put(id, System.nanoTime());
+                blobsFailed.increment();
+                in.dropped = true;
+                pool.release(in.buffer);
+            }
+        }
+    }
+
+    private void checkGaps() {
+        final long now = System.nanoTime();
+        final long forget = TimeUnit.MILLISECONDS.toNanos(gapTimeoutMillis) * (maxAttempts + 1) * 2;
+        finished.values().removeIf(at -> now - at > forget);
+        incoming.forEach((id, in) -> {
+            final List<Integer> gaps = new ArrayList<>();
+            synchronized (in) {
+                if (in.missing == 0 || now - in.lastProgress < TimeUnit.MILLISECONDS.toNanos(gapTimeoutMillis)) {
+                    return;
+                }
+                if (in.attempts++ >= maxAttempts) {
+                    fail(id, in);
+                    return;
+                }
+                in.lastProgress = now;
+                for (int i = in.received.nextClearBit(0); i < in.count; i = in.received.nextClearBit(i + 1)) {
+                    gaps.add(i);
+                }
+            }
+            // written outside the lock, so a stalled nack reader does not
+            // hold up the reassembly of this stream
+            for (int i : gaps) {
+                try {
+                    nacks.write(codec.chunk(id, i, in.count, in.chunkSize, in.length, NO_DATA));
+                } catch (TimeoutException e) {
+                    // retried on the next check
+                    return;
+                }
+            }
+        });
+    }
+
+    public long chunksSent() {
+        return chunksSent.sum();
+    }
+
+    public long chunksRetransmitted() {
+        return chunksRetransmitted.sum();
+    }
+
+    public long blobsReceived() {
+        return blobsReceived.sum();
+    }
+
+    public long blobsFailed() {
+        return blobsFailed.sum();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.sub.Sample;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Keeps only the most recent sample of every instance until a consumer gets
+ * around to draining it.
+ * <p/>
+ * Each instance owns a single slot, and an instance is queued as dirty only
+ * when its slot goes from empty to full. A slow consumer therefore never sees
+ * more than one pending sample per instance, and memory is bounded by the
+ * number of instances rather than by the update rate.
+ */
+public class ConflatingObserver<T> implements Consumer<Sample<T>> {
+    private final ConcurrentHashMap<InstanceHandle, Sample<T>> slots =
+            new ConcurrentHashMap<>();
+    private final Queue<InstanceHandle> dirty =
+            new ConcurrentLinkedQueue<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+
+    @Override
+    public void accept(Sample<T> sample) {
+        received.increment();
+        final InstanceHandle key = sample.getInstanceHandle();
+        if (slots.put(key, sample) == null) {
+            dirty.add(key);
+        } else {
+            conflated.increment();
+        }
+    }
+
+    /**
+     * Removes and returns the latest sample of the next dirty instance.
+     */
+    public Optional<Sample<T>> poll() {
+        InstanceHandle key;
+        while ((key = dirty.poll()) != null) {
+            final Sample<T> sample = slots.remove(key);
+            if (sample != null) {
+                return Optional.of(sample);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Hands at most {@code max} pending samples to the consumer, one per
+     * instance, and returns how many were delivered.
+     */
+    public int drain(Consumer<Sample<T>> consumer, int max) {
+        int count = 0;
+        while (count < max) {
+            final Optional<Sample<T>> next = poll();
+            if (!next.isPresent()) {
+                break;
+            }
+            consumer.accept(next.get());
+            count++;
+        }
+        return count;
+    }
+
+    public int drain(Consumer<Sample<T>> consumer) {
+        return drain(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The number of instances with an undrained sample.
+     */
+    public int pending() {
+        return slots.size();
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    /**
+     * The number of samples that were overwritten before being drained.
+     */
+    public long conflated() {
+        return conflated.sum();
+    }
+}
@@ -26,7 +26,9 @@ public enum DataState {
     OLD_DATA(VConfig.DefaultEntities.defaultSub().createDataState().withAnyViewState().with(InstanceState.ALIVE).with(SampleState.READ)),
     NEW_INSTANCES(VConfig.DefaultEntities.defaultSub().createDataState().with(ViewState.NEW).withAnySampleState().withAnyInstanceState()),
     NOT_ALIVE_INSTANCES(VConfig.DefaultEntities.defaultSub().createDataState().with(InstanceState.NOT_ALIVE_NO_WRITERS).withAnySampleState().withAnyViewState()),
-    DISPOSED_INSTANCES(VConfig.DefaultEntities.defaultSub().createDataState().with(InstanceState.NOT_ALIVE_DISPOSED).withAnySampleState().withAnyViewState());
+    DISPOSED_INSTANCES(VConfig.DefaultEntities.defaultSub().createDataState().with(InstanceState.NOT_ALIVE_DISPOSED).withAnySampleState().withAnyViewState()),
+    NEW_SAMPLES(VConfig.DefaultEntities.defaultSub().createDataState().withAnyInstanceState().withAnyViewState().with(SampleState.NOT_READ)),
+    READ_SAMPLES(VConfig.DefaultEntities.defaultSub().createDataState().withAnyInstanceState().withAnyViewState().with(SampleState.READ));
 
     private final Subscriber.DataState state;
 
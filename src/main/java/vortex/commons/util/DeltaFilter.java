@@ -0,0 +1,140 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Suppresses writes that would republish the value last published for the
+ * same instance, see {@link Idiom#setDeltaFilter(DeltaFilter)}.
+ * <p/>
+ * Values are compared either through a fingerprint, such as a hash of the
+ * non key fields, or through an equality on the last published value. In the
+ * latter case that value is retained, so it must not be mutated after being
+ * written. An unchanged value is still republished once the refresh interval
+ * has elapsed, to keep late joiners and liveliness served.
+ */
+public class DeltaFilter<T> {
+
+    private static final class Last<T> {
+        final long fingerprint;
+        final T value;
+        final long writtenAt;
+
+        Last(long fingerprint, T value, long writtenAt) {
+            this.fingerprint = fingerprint;
+            this.value = value;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    private final Function<T, ?> key;
+    private final ToLongFunction<T> fingerprint;
+    private final BiPredicate<T, T> same;
+    private final long refreshNanos;
+    private final ConcurrentHashMap<Object, Last<T>> last = new ConcurrentHashMap<>();
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+
+    private DeltaFilter(Function<T, ?> key, ToLongFunction<T> fingerprint, BiPredicate<T, T> same, long refresh, TimeUnit unit) {
+        this.key = key;
+        this.fingerprint = fingerprint;
+        this.same = same;
+        this.refreshNanos = refresh > 0 ? unit.toNanos(refresh) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Compares values by fingerprint, {@code refresh} of zero never refreshes.
+     */
+    public static <T> DeltaFilter<T> byFingerprint(Function<T, ?> key, ToLongFunction<T> fingerprint, long refresh, TimeUnit unit) {
+        return new DeltaFilter<>(key, fingerprint, null, refresh, unit);
+    }
+
+    /**
+     * Compares values with the given equality, {@code refresh} of zero never
+     * refreshes.
+     */
+    public static <T> DeltaFilter<T> byEquality(Function<T, ?> key, BiPredicate<T, T> same, long refresh, TimeUnit unit) {
+        return new DeltaFilter<>(key, null, same, refresh, unit);
+    }
+
+    /**
+     * Whether the value differs from the last one published for its
+     * instance, or is due for a refresh.
+     */
+    boolean changed(T value) {
+        final Last<T> previous = last.get(key.apply(value));
+        if (previous == null) {
+            return true;
+        }
+        final boolean unchanged = same != null ?
+                same.test(previous.value, value) :
+                previous.fingerprint == fingerprint.applyAsLong(value);
+        if (!unchanged) {
+            return true;
+        }
+        if (System.nanoTime() - previous.writtenAt >= refreshNanos) {
+            refreshed.increment();
+            return true;
+        }
+        suppressed.increment();
+        return false;
+    }
+
+    /**
+     * Records a value as published, only once the write succeeded so that a
+     * failed write is retried by the next identical one.
+     */
+    void published(T value) {
+        written.increment();
+        last.put(key.apply(value), new Last<>(
+                fingerprint != null ? fingerprint.applyAsLong(value) : 0,
+                same != null ? value : null,
+                System.nanoTime()));
+    }
+
+    /**
+     * Forgets an instance, its next value is always written.
+     */
+    public void forget(T keyHolder) {
+        last.remove(key.apply(keyHolder));
+    }
+
+    public long written() {
+        return written.sum();
+    }
+
+    public long suppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * Unchanged values written anyway because the refresh interval elapsed.
+     */
+    public long refreshed() {
+        return refreshed.sum();
+    }
+
+    public int instances() {
+        return last.size();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers bucketed by power of two capacity.
+ */
+public class DirectBufferPool {
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 30;
+    public static final int MAX_CAPACITY = 1 << MAX_SHIFT;
+
+    private final int maxPerBucket;
+    private final Queue<ByteBuffer>[] buckets;
+    private final AtomicInteger[] sizes;
+
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int maxPerBucket) {
+        this.maxPerBucket = maxPerBucket;
+        this.buckets = (Queue<ByteBuffer>[]) new Queue<?>[MAX_SHIFT + 1];
+        this.sizes = new AtomicInteger[MAX_SHIFT + 1];
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+            sizes[i] = new AtomicInteger();
+        }
+    }
+
+    public DirectBufferPool() {
+        this(4);
+    }
+
+    /**
+     * Returns a cleared buffer with at least the requested capacity, limited
+     * to exactly {@code capacity} bytes.
+     */
+    public ByteBuffer acquire(int capacity) {
+        final int shift = shift(capacity);
+        ByteBuffer buffer = buckets[shift].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(1 << shift);
+        } else {
+            sizes[shift].decrementAndGet();
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || Integer.bitCount(buffer.capacity()) != 1) {
+            return;
+        }
+        final int shift = Integer.numberOfTrailingZeros(buffer.capacity());
+        if (shift < MIN_SHIFT || shift > MAX_SHIFT) {
+            return;
+        }
+        if (sizes[shift].incrementAndGet() <= maxPerBucket) {
+            buckets[shift].add(buffer);
+        } else {
+            sizes[shift].decrementAndGet();
+        }
+    }
+
+    private static int shift(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Buffers are limited to " + MAX_CAPACITY + " bytes");
+        }
+        return Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+    }
+}
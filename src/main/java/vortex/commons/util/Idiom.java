@@ -1,10 +1,13 @@
 package vortex.commons.util;
 
-import org.omg.dds.core.event.DataAvailableEvent;
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.core.event.*;
 import org.omg.dds.core.policy.Durability;
+import org.omg.dds.core.policy.QosPolicy;
 import org.omg.dds.core.policy.ResourceLimits;
 import org.omg.dds.domain.DomainParticipant;
 import org.omg.dds.pub.DataWriter;
+import org.omg.dds.pub.DataWriterAdapter;
 import org.omg.dds.pub.DataWriterQos;
 import org.omg.dds.pub.Publisher;
 import org.omg.dds.sub.*;
@@ -12,11 +15,12 @@ import org.omg.dds.topic.Topic;
 import org.omg.dds.topic.TopicQos;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static vortex.commons.util.LambdaExceptionUtil.rethrowConsumer;
 
@@ -28,6 +32,7 @@ public abstract class Idiom<T> {
     protected final String name;
     protected final Durability.Kind durability;
     protected final ResourceLimits rlimits;
+    protected final IdiomSizing sizing;
     protected final DomainParticipant dp;
     protected final Subscriber sub;
     protected final Publisher pub;
@@ -41,13 +46,46 @@ public abstract class Idiom<T> {
             = new AtomicReference<>(null);
     private final List<Consumer<Sample<T>>> consumers =
             new CopyOnWriteArrayList<>();
+    private final Object dispatch = new Object();
+    private volatile boolean taking = false;
+    private final AtomicReference<WriterFlowControl> flowControl
+            = new AtomicReference<>(null);
+    private final AtomicReference<DeltaFilter<T>> deltaFilter
+            = new AtomicReference<>(null);
+    private final AtomicReference<DataReaderListener<T>> monitor
+            = new AtomicReference<>(null);
+    private final AtomicReference<QosPolicy.ForDataReader[]> readerOverrides
+            = new AtomicReference<>(null);
+    private final List<Runnable> matchWaiters =
+            new CopyOnWriteArrayList<>();
+    private final List<Consumer<T>> dataConsumers =
+            new CopyOnWriteArrayList<>();
+    private volatile LocalChannel<T> local = null;
+    private volatile LocalChannel.Subscription<T> localSubscription = null;
+    private int localCapacity;
+    private volatile boolean localWriter = false;
+    private volatile Function<T, ?> routingKey = null;
+    private final ConcurrentHashMap<Object, List<Consumer<Sample<T>>>> routes =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InstanceHandle, Object> instanceKeys =
+            new ConcurrentHashMap<>();
 
     public Idiom(Class<T> type, DomainParticipant dp, String name, Subscriber sub, Publisher pub, Durability.Kind durability) {
+        this(type, dp, name, sub, pub, durability, null);
+    }
+
+    /**
+     * When a sizing is given the resource limits of the topic and reader are
+     * derived from it, otherwise the historical defaults are used.
+     */
+    public Idiom(Class<T> type, DomainParticipant dp, String name, Subscriber sub, Publisher pub, Durability.Kind durability, IdiomSizing sizing) {
         this.type = type;
         this.dp = dp;
         this.name = name;
 
-        this.rlimits = VConfig.DefaultEntities.defaultPolicyFactory().ResourceLimits().withMaxSamples(1).withMaxInstances(1024).withMaxSamplesPerInstance(1024 * 1024);
+        this.sizing = sizing;
+        this.rlimits = sizing != null ? sizing.resourceLimits() :
+                VConfig.DefaultEntities.defaultPolicyFactory().ResourceLimits().withMaxSamples(1).withMaxInstances(1024).withMaxSamplesPerInstance(1024 * 1024);
         this.sub = sub;
         this.pub = pub;
         this.durability = durability;
@@ -59,28 +97,389 @@ public abstract class Idiom<T> {
         return result;
     }
 
+    /**
+     * Delivers every sample to the handler exactly once. The sample state is
+     * used as a cursor: samples already marked read were seen by the existing
+     * observers and are replayed to the new handler only, samples not yet read
+     * are delivered to all observers and marked read in the process.
+     */
     public void observe(Consumer<Sample<T>> handler) {
-        consumers.add(handler);
+        synchronized (dispatch) {
+            ArrayList<Sample<T>> seen = new ArrayList<>();
+            reader().select().dataState(DataState.READ_SAMPLES.state()).read(seen);
+            seen.forEach(handler);
+            consumers.add(handler);
+        }
+        listen();
+        dispatch();
+    }
+
+    /**
+     * Stops delivering samples to a handler registered with
+     * {@link #observe(Consumer)} or {@link #consume(Consumer)}.
+     */
+    public void unobserve(Consumer<Sample<T>> handler) {
+        consumers.remove(handler);
+    }
+
+    /**
+     * Like {@link #observe(Consumer)}, but samples are taken out of the reader
+     * cache once delivered so that the cache does not grow with the history of
+     * unbounded streams. From then on late observers are only replayed what
+     * was delivered before the first consumer was registered.
+     */
+    public void consume(Consumer<Sample<T>> handler) {
+        taking = true;
+        observe(handler);
+    }
+
+    /**
+     * Sets how {@link #observe(Object, Consumer)} finds the key of a sample,
+     * typically the instance key fields of the type.
+     */
+    public <K> void routeBy(Function<T, K> key) {
+        routingKey = key;
+    }
+
+    /**
+     * Like {@link #observe(Consumer)} for the samples of the instance with the
+     * given key only. Samples are routed through a map from key to handlers,
+     * so the cost of a sample does not depend on the number of keyed
+     * observers. The handlers of an instance are dropped once it is disposed.
+     * Instance keys are only tracked for the keys being observed, and
+     * forgotten when the instance is disposed or has no writers left.
+     */
+    public <K> void observe(K key, Consumer<Sample<T>> handler) {
+        final Function<T, ?> keyOf = routingKey;
+        if (keyOf == null) {
+            throw new IllegalStateException("No routing key set on idiom " + name);
+        }
+        synchronized (dispatch) {
+            // routed first, so that the replay tracks the instances of the key
+            final List<Consumer<Sample<T>>> handlers = routes.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>());
+            ArrayList<Sample<T>> seen = new ArrayList<>();
+            reader().select().dataState(DataState.READ_SAMPLES.state()).read(seen);
+            seen.stream()
+                    .filter(s -> key.equals(keyOf(keyOf, s)))
+                    .forEach(handler);
+            handlers.add(handler);
+        }
+        listen();
+        dispatch();
+    }
+
+    private Object keyOf(Function<T, ?> keyOf, Sample<T> s) {
+        final T data = s.getData();
+        if (data == null) {
+            // invalid samples, such as disposals, only carry the instance
+            return instanceKeys.get(s.getInstanceHandle());
+        }
+        final Object key = keyOf.apply(data);
+        if (key != null && routes.containsKey(key)) {
+            instanceKeys.put(s.getInstanceHandle(), key);
+        }
+        return key;
+    }
+
+    private void route(Sample<T> s) {
+        final Function<T, ?> keyOf = routingKey;
+        if (keyOf == null) {
+            return;
+        }
+        final Object key = keyOf(keyOf, s);
+        if (key == null) {
+            return;
+        }
+        final List<Consumer<Sample<T>>> handlers = routes.get(key);
+        if (handlers != null) {
+            handlers.forEach(h -> h.accept(s));
+        }
+        if (s.getInstanceState() == InstanceState.NOT_ALIVE_DISPOSED) {
+            routes.remove(key);
+            instanceKeys.remove(s.getInstanceHandle());
+        } else if (s.getInstanceState() == InstanceState.NOT_ALIVE_NO_WRITERS) {
+            // the handlers stay for when a writer comes back
+            instanceKeys.remove(s.getInstanceHandle());
+        }
+    }
+
+    /**
+     * Delivers the data of every valid sample received from now on. When
+     * {@link #enableLocalDelivery(int) local delivery} is enabled, the values
+     * written by local idioms are handed over as is, by reference, and must
+     * not be mutated by the handler. Like the other observers, data observers
+     * are never called concurrently.
+     */
+    public void observeData(Consumer<T> handler) {
+        dataConsumers.add(handler);
+        subscribeLocal();
+        listen();
+        dispatch();
+    }
+
+    /**
+     * Hands every value written through an idiom of this participant with the
+     * same topic and QoS, local delivery enabled on both sides, directly to
+     * the {@link #observeData(Consumer) data observers} through a ring buffer
+     * of the given capacity, without serialization. Values are still
+     * published to remote readers, and copies received through the
+     * middleware from local writers are skipped by the data observers.
+     * Sample observers are not affected and keep receiving everything from
+     * the middleware. Written values must not be mutated afterwards. Writers
+     * never wait for a full ring, the values that do not fit are dropped for
+     * this idiom and counted by {@link #localDropped()}.
+     * <p/>
+     * The QoS compared is the one the idiom was created with, readers resized
+     * with {@link #resizeReader(QosPolicy.ForDataReader...)} are not told
+     * apart. Idioms whose reader filters samples, such as a soft state with a
+     * minimum separation, cannot deliver locally.
+     */
+    public void enableLocalDelivery(int capacity) {
+        final String key = localDeliveryKey();
+        if (key == null) {
+            throw new IllegalStateException("Idiom " + name + " does not support local delivery");
+        }
+        final LocalChannel<T> lc = LocalChannel.of(dp, key);
+        synchronized (dataConsumers) {
+            localCapacity = capacity;
+            local = lc;
+        }
+        if (writer.get() != null) {
+            registerLocalWriter(lc);
+        }
+        subscribeLocal();
+    }
+
+    /**
+     * Stops the local delivery, values written from now on only go through
+     * the middleware.
+     */
+    public void disableLocalDelivery() {
+        synchronized (dataConsumers) {
+            final LocalChannel<T> lc = local;
+            if (lc == null) {
+                return;
+            }
+            local = null;
+            if (localSubscription != null) {
+                lc.unsubscribe(localSubscription);
+                localSubscription = null;
+            }
+            if (localWriter) {
+                lc.removeWriter(writer().getInstanceHandle());
+                localWriter = false;
+            }
+        }
+    }
+
+    /**
+     * Values written locally that were dropped because the data observers of
+     * this idiom did not keep up.
+     */
+    public long localDropped() {
+        final LocalChannel.Subscription<T> s = localSubscription;
+        return s == null ? 0 : s.dropped();
+    }
+
+    /**
+     * Identifies the idioms that can hand values over to each other locally,
+     * by topic and QoS, or null when this idiom cannot.
+     */
+    protected String localDeliveryKey() {
+        return getClass().getName() + "/" + name + "/" + type.getName() + "/" + durability +
+                (sizing != null ? "/" + sizing.historyDepth() : "");
+    }
+
+    private void registerLocalWriter(LocalChannel<T> lc) {
+        synchronized (dataConsumers) {
+            // only idioms that actually write get a writer, so that readers
+            // do not add publications to the matches of remote readers
+            if (!localWriter && local == lc) {
+                lc.addWriter(writer().getInstanceHandle());
+                localWriter = true;
+            }
+        }
+    }
+
+    private void subscribeLocal() {
+        synchronized (dataConsumers) {
+            if (local != null && localSubscription == null && !dataConsumers.isEmpty()) {
+                localSubscription = local.subscribe(name, localCapacity, t -> {
+                    synchronized (dispatch) {
+                        dataConsumers.forEach(c -> c.accept(t));
+                    }
+                });
+            }
+        }
+    }
+
+    private void dispatch() {
+        if (consumers.isEmpty() && dataConsumers.isEmpty() && routes.isEmpty()) {
+            return;
+        }
+        synchronized (dispatch) {
+            ArrayList<Sample<T>> samples = new ArrayList<>();
+            if (taking) {
+                reader().select().dataState(DataState.NEW_SAMPLES.state()).take(samples);
+            } else {
+                reader().select().dataState(DataState.NEW_SAMPLES.state()).read(samples);
+            }
+            samples.forEach(s -> consumers.forEach(c -> c.accept(s)));
+            if (!routes.isEmpty()) {
+                samples.forEach(this::route);
+            }
+            if (!dataConsumers.isEmpty()) {
+                final LocalChannel<T> lc = local;
+                samples.stream()
+                        .filter(s -> s.getData() != null)
+                        .filter(s -> lc == null || !lc.isLocal(s.getPublicationHandle()))
+                        .forEach(s -> dataConsumers.forEach(c -> c.accept(s.getData())));
+            }
+        }
+    }
+
+    /**
+     * Forwards the status events of this idiom's reader, such as sample lost
+     * or rejected, to the given listener. Data available events keep being
+     * dispatched to the observers.
+     */
+    public void setMonitor(DataReaderListener<T> m) {
+        monitor.set(m);
+        listen();
+    }
+
+    private void listen() {
         if(listener.get() == null) {
-            DataReaderAdapter<T> adapter = new DataReaderAdapter<T>() {
-                @Override
-                public void onDataAvailable(DataAvailableEvent<T> status) {
-                    ArrayList<Sample<T>> samples = new ArrayList<>();
-                    reader().read(samples);
-                    samples.forEach(s -> consumers.forEach(c -> c.accept(s)));
-                }
-            };
-            listener.compareAndSet(null, adapter);
-            reader().setListener(adapter);
+            if (listener.compareAndSet(null, new IdiomListener())) {
+                reader().setListener(listener.get());
+            }
         }
     }
 
+    /**
+     * Observes this idiom keeping only the latest sample per instance, for
+     * consumers that drain at their own pace.
+     */
+    public ConflatingObserver<T> observeLatest() {
+        final ConflatingObserver<T> observer = new ConflatingObserver<>();
+        observe(observer);
+        return observer;
+    }
+
     public void write(T t) throws TimeoutException {
-        writer().write(t);
+        final DeltaFilter<T> df = deltaFilter.get();
+        if (df != null && !df.changed(t)) {
+            return;
+        }
+        final LocalChannel<T> lc = local;
+        if (lc != null && !localWriter) {
+            // before the first write, so local readers skip its copy
+            registerLocalWriter(lc);
+        }
+        final WriterFlowControl fc = flowControl.get();
+        if (fc == null) {
+            writer().write(t);
+        } else {
+            fc.acquire();
+            final long start = System.nanoTime();
+            try {
+                writer().write(t);
+            } catch (TimeoutException e) {
+                fc.onWriteTimeout();
+                throw e;
+            }
+            fc.onWriteCompleted(System.nanoTime() - start);
+        }
+        if (lc != null) {
+            lc.publish(t);
+        }
+        if (df != null) {
+            df.published(t);
+        }
     }
 
     public void write(List<T> t) {
-        t.forEach(rethrowConsumer(next -> writer().write(next)));
+        t.forEach(rethrowConsumer(this::write));
+    }
+
+    /**
+     * Paces all subsequent writes through the given flow control, or removes
+     * pacing when {@code fc} is null.
+     */
+    public void setFlowControl(WriterFlowControl fc) {
+        flowControl.set(fc);
+        if (fc != null && writer.get() != null) {
+            fc.onPublicationMatched(writer.get().getPublicationMatchedStatus().getCurrentCount());
+        }
+    }
+
+    public WriterFlowControl flowControl() {
+        return flowControl.get();
+    }
+
+    /**
+     * Skips writes of values unchanged since the last one published for the
+     * same instance, or writes everything again when {@code df} is null.
+     */
+    public void setDeltaFilter(DeltaFilter<T> df) {
+        deltaFilter.set(df);
+    }
+
+    public DeltaFilter<T> deltaFilter() {
+        return deltaFilter.get();
+    }
+
+    /**
+     * Creates the topic, the writer unless {@code publicationMatches} is
+     * negative and the reader unless {@code subscriptionMatches} is negative,
+     * then completes once the writer is matched with at least
+     * {@code publicationMatches} readers and the reader with at least
+     * {@code subscriptionMatches} writers, local ones included. Fails with a
+     * {@link TimeoutException} when the matches are not seen in time.
+     */
+    public CompletableFuture<Idiom<T>> warmUp(int publicationMatches, int subscriptionMatches, long timeout, TimeUnit unit) {
+        final CompletableFuture<Idiom<T>> result = new CompletableFuture<>();
+        topic();
+        final DataWriter<T> dw = publicationMatches >= 0 ? writer() : null;
+        if (subscriptionMatches >= 0) {
+            listen();
+        }
+        final DataReader<T> dr = subscriptionMatches >= 0 ? reader() : null;
+
+        final Runnable check = () -> {
+            if ((dw == null || dw.getPublicationMatchedStatus().getCurrentCount() >= publicationMatches) &&
+                    (dr == null || dr.getSubscriptionMatchedStatus().getCurrentCount() >= subscriptionMatches)) {
+                result.complete(this);
+            }
+        };
+        matchWaiters.add(check);
+        final ScheduledFuture<?> expiry = Timers.shared().schedule(() ->
+                result.completeExceptionally(new TimeoutException("Idiom " + name + " not matched within " + timeout + " " + unit)),
+                timeout, unit);
+        result.whenComplete((r, e) -> {
+            matchWaiters.remove(check);
+            expiry.cancel(false);
+        });
+        check.run();
+        return result;
+    }
+
+    /**
+     * Warms up the idioms in parallel on the given executor, typically at
+     * service startup.
+     */
+    public static CompletableFuture<Void> warmUp(Collection<? extends Idiom<?>> idioms, int publicationMatches, int subscriptionMatches,
+                                                 long timeout, TimeUnit unit, Executor executor) {
+        return CompletableFuture.allOf(idioms.stream()
+                .map(i -> CompletableFuture
+                        .supplyAsync(() -> i.warmUp(publicationMatches, subscriptionMatches, timeout, unit), executor)
+                        .thenCompose(f -> f))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    public static CompletableFuture<Void> warmUp(Collection<? extends Idiom<?>> idioms, int publicationMatches, int subscriptionMatches,
+                                                 long timeout, TimeUnit unit) {
+        return warmUp(idioms, publicationMatches, subscriptionMatches, timeout, unit, ForkJoinPool.commonPool());
     }
 
     private Topic<T> topic() {
@@ -97,23 +496,133 @@ public abstract class Idiom<T> {
     protected abstract TopicQos topicQos(DomainParticipant dp, Durability.Kind durability, ResourceLimits rlimits);
     protected abstract DataReaderQos readerQos(Subscriber sub, Durability.Kind durability);
     protected abstract DataWriterQos writerQos(Publisher pub, Durability.Kind durability);
-    private DataReader<T> reader() {
+    DataReader<T> reader() {
         if (reader.get() == null) {
-            DataReader<T> dr = sub.createDataReader(topic(), readerQos(sub, durability));
+            DataReaderQos qos = readerQos(sub, durability);
+            if (sizing != null) {
+                qos = qos.withPolicy(rlimits);
+            }
+            final QosPolicy.ForDataReader[] overrides = readerOverrides.get();
+            if (overrides != null) {
+                qos = qos.withPolicies(overrides);
+            }
+            DataReader<T> dr = sub.createDataReader(topic(), qos);
             if (!reader.compareAndSet(null, dr)) {
                 // someone else must have created the  topic
                 dr.close();
+            } else if (listener.get() != null) {
+                dr.setListener(listener.get());
             }
         }
         return reader.get();
     }
 
-    private DataWriter<T> writer() {
+    /**
+     * Replaces the reader with one using the given history and resource
+     * limits on top of the idiom's QoS. History and resource limits cannot be
+     * changed on an enabled reader, so samples still cached by the current
+     * reader are dropped.
+     * <p/>
+     * The new reader receives the durable history again as new samples, and
+     * the observers are delivered those samples a second time, under instance
+     * handles that differ from the ones of the previous reader. Observers
+     * keeping state by instance handle, such as an {@link IndexedCache},
+     * should be created anew after a resize.
+     */
+    public void resizeReader(QosPolicy.ForDataReader... policies) {
+        final DataReader<T> current = reader.get();
+        if (current != null) {
+            // outside the dispatch lock, as detaching waits for a listener
+            // call in progress, which may be waiting for that lock
+            current.setListener(null);
+        }
+        synchronized (dispatch) {
+            readerOverrides.set(policies);
+            final DataReader<T> old = reader.getAndSet(null);
+            if (old != null) {
+                if (old != current) {
+                    old.setListener(null);
+                }
+                old.close();
+                instanceKeys.clear();
+                reader();
+            }
+        }
+    }
+
+    private class IdiomListener extends BaseDataReaderListener<T> {
+        @Override
+        public void onDataAvailable(DataAvailableEvent<T> status) {
+            dispatch();
+        }
+
+        @Override
+        public void onRequestedDeadlineMissed(RequestedDeadlineMissedEvent<T> status) {
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onRequestedDeadlineMissed(status);
+            }
+        }
+
+        @Override
+        public void onRequestedIncompatibleQos(RequestedIncompatibleQosEvent<T> status) {
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onRequestedIncompatibleQos(status);
+            }
+        }
+
+        @Override
+        public void onSampleRejected(SampleRejectedEvent<T> status) {
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onSampleRejected(status);
+            }
+        }
+
+        @Override
+        public void onLivelinessChanged(LivelinessChangedEvent<T> status) {
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onLivelinessChanged(status);
+            }
+        }
+
+        @Override
+        public void onSubscriptionMatched(SubscriptionMatchedEvent<T> status) {
+            matchWaiters.forEach(Runnable::run);
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onSubscriptionMatched(status);
+            }
+        }
+
+        @Override
+        public void onSampleLost(SampleLostEvent<T> status) {
+            final DataReaderListener<T> m = monitor.get();
+            if (m != null) {
+                m.onSampleLost(status);
+            }
+        }
+    }
+
+    DataWriter<T> writer() {
         if (writer.get() == null) {
             DataWriter<T> dw = pub.createDataWriter(topic(), writerQos(pub, durability));
             if (!writer.compareAndSet(null, dw)) {
                 // someone else must have created the  topic
                 dw.close();
+            } else {
+                dw.setListener(new DataWriterAdapter<T>() {
+                    @Override
+                    public void onPublicationMatched(PublicationMatchedEvent<T> status) {
+                        matchWaiters.forEach(Runnable::run);
+                        final WriterFlowControl fc = flowControl.get();
+                        if (fc != null) {
+                            fc.onPublicationMatched(status.getStatus().getCurrentCount());
+                        }
+                    }
+                });
             }
         }
         return writer.get();
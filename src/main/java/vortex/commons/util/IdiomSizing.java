@@ -0,0 +1,179 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.core.policy.History;
+import org.omg.dds.core.policy.PolicyFactory;
+import org.omg.dds.core.policy.ResourceLimits;
+import org.omg.dds.sub.Sample;
+import org.omg.dds.sub.SampleState;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The expected shape of the data of an {@link Idiom}: how many instances it
+ * has, how often each instance is updated and for how long updates have to be
+ * retained. The history depth and resource limits of the idiom are derived
+ * from it instead of the hard coded defaults.
+ * <p/>
+ * A sizing is either declared up front or measured on a live idiom during a
+ * warm up window, see {@link #measure(Idiom, long, TimeUnit, long, TimeUnit, Executor)}.
+ */
+public final class IdiomSizing {
+    private static final int UNLIMITED = -1;
+    private static final double DEFAULT_HEADROOM = 1.5;
+
+    private final int instances;
+    private final double ratePerInstance;
+    private final long retentionMillis;
+    private final double headroom;
+
+    private IdiomSizing(int instances, double ratePerInstance, long retentionMillis, double headroom) {
+        if (instances < 1 || ratePerInstance < 0 || retentionMillis < 0 || headroom < 1) {
+            throw new IllegalArgumentException("Invalid sizing expectations");
+        }
+        this.instances = instances;
+        this.ratePerInstance = ratePerInstance;
+        this.retentionMillis = retentionMillis;
+        this.headroom = headroom;
+    }
+
+    /**
+     * Sizes for {@code instances} instances each updated {@code ratePerInstance}
+     * times per second, whose updates must be retained for {@code retention}.
+     */
+    public static IdiomSizing declared(int instances, double ratePerInstance, long retention, TimeUnit unit, double headroom) {
+        return new IdiomSizing(instances, ratePerInstance, unit.toMillis(retention), headroom);
+    }
+
+    public static IdiomSizing declared(int instances, double ratePerInstance, long retention, TimeUnit unit) {
+        return declared(instances, ratePerInstance, retention, unit, DEFAULT_HEADROOM);
+    }
+
+    /**
+     * Counts the instances and the per instance update rate seen by the idiom
+     * during {@code warmUp}, then resizes its reader for the measured load on
+     * the given executor, as replacing the reader may block. When nothing was
+     * received during the warm up the reader is left as it is and the result
+     * fails with an {@link IllegalStateException}.
+     * <p/>
+     * Only the reader is resized. The topic, and with it the durability
+     * service limits of transient and persistent idioms, cannot be changed
+     * once created, so those keep the limits the idiom was created with. Use
+     * a {@link #declared(int, double, long, TimeUnit) declared} sizing when
+     * they matter.
+     */
+    public static <T> CompletableFuture<IdiomSizing> measure(Idiom<T> idiom, long warmUp, TimeUnit warmUpUnit,
+                                                            long retention, TimeUnit retentionUnit, Executor executor) {
+        final ConcurrentHashMap<InstanceHandle, LongAdder> counts = new ConcurrentHashMap<>();
+        final AtomicBoolean measuring = new AtomicBoolean(true);
+        final CompletableFuture<IdiomSizing> result = new CompletableFuture<>();
+
+        final Consumer<Sample<T>> counter = s -> {
+            if (measuring.get() && s.getSampleState() == SampleState.NOT_READ) {
+                counts.computeIfAbsent(s.getInstanceHandle(), k -> new LongAdder()).increment();
+            }
+        };
+        idiom.observe(counter);
+        final Runnable resize = () -> {
+            measuring.set(false);
+            idiom.unobserve(counter);
+            if (counts.isEmpty()) {
+                result.completeExceptionally(new IllegalStateException(
+                        "Nothing received on idiom " + idiom.name + " within " + warmUp + " " + warmUpUnit));
+                return;
+            }
+            try {
+                final double seconds = warmUpUnit.toMillis(warmUp) / 1000.0;
+                final long busiest = counts.values().stream().mapToLong(LongAdder::sum).max().orElse(0);
+                final IdiomSizing sizing = declared(Math.max(1, counts.size()), busiest / seconds,
+                        retention, retentionUnit);
+                idiom.resizeReader(sizing.history(idiom.reader().getQos().getHistory()), sizing.resourceLimits());
+                result.complete(sizing);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        Timers.shared().schedule(() -> {
+            try {
+                executor.execute(resize);
+            } catch (RejectedExecutionException e) {
+                idiom.unobserve(counter);
+                result.completeExceptionally(e);
+            }
+        }, warmUp, warmUpUnit);
+        return result;
+    }
+
+    public static <T> CompletableFuture<IdiomSizing> measure(Idiom<T> idiom, long warmUp, TimeUnit warmUpUnit,
+                                                            long retention, TimeUnit retentionUnit) {
+        return measure(idiom, warmUp, warmUpUnit, retention, retentionUnit, ForkJoinPool.commonPool());
+    }
+
+    public int instances() {
+        return instances;
+    }
+
+    public double ratePerInstance() {
+        return ratePerInstance;
+    }
+
+    public long retention(TimeUnit unit) {
+        return unit.convert(retentionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int maxInstances() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(instances * headroom));
+    }
+
+    public int historyDepth() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, (long) Math.ceil(ratePerInstance * retentionMillis / 1000.0 * headroom)));
+    }
+
+    public ResourceLimits resourceLimits() {
+        final long maxSamples = (long) maxInstances() * historyDepth();
+        return VConfig.DefaultEntities.defaultPolicyFactory().ResourceLimits()
+                .withMaxInstances(maxInstances())
+                .withMaxSamplesPerInstance(historyDepth())
+                .withMaxSamples(maxSamples > Integer.MAX_VALUE ? UNLIMITED : (int) maxSamples);
+    }
+
+    /**
+     * Keep all histories stay keep all, bounded by the resource limits, keep
+     * last histories get the sized depth.
+     */
+    History history(History current) {
+        final PolicyFactory pf = VConfig.DefaultEntities.defaultPolicyFactory();
+        return current.getKind() == History.Kind.KEEP_ALL ? current : pf.History().withKeepLast(historyDepth());
+    }
+
+    @Override
+    public String toString() {
+        return "IdiomSizing{instances=" + instances +
+                ", ratePerInstance=" + ratePerInstance +
+                ", retentionMillis=" + retentionMillis +
+                ", historyDepth=" + historyDepth() +
+                ", maxInstances=" + maxInstances() + '}';
+    }
+}
@@ -22,10 +22,15 @@ import org.omg.dds.domain.DomainParticipant;
 import org.omg.dds.pub.DataWriterQos;
 import org.omg.dds.pub.Publisher;
 import org.omg.dds.sub.DataReaderQos;
+import org.omg.dds.sub.InstanceState;
+import org.omg.dds.sub.Sample;
 import org.omg.dds.sub.Subscriber;
 import org.omg.dds.topic.TopicQos;
 
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class Idioms {
     private Idioms() {
@@ -33,10 +38,40 @@ public class Idioms {
 
     public static class SoftState<T> extends Idiom<T> {
         private final int history;
+        private final long minimumSeparationNanos;
+
+        /**
+         * Creates a soft state whose reader drops updates of an instance that
+         * arrive less than {@code minimumSeparation} after the previous one.
+         */
+        public SoftState(Class<T> type, String name, int history, long minimumSeparation, TimeUnit unit, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            this(type, name, history, minimumSeparation, unit, null, dp, sub, pub);
+        }
 
-        public SoftState(Class<T> type, String name, int history, DomainParticipant dp, Subscriber sub, Publisher pub) {
-            super(type, dp, name, sub, pub, Durability.Kind.VOLATILE);
+        private SoftState(Class<T> type, String name, int history, long minimumSeparation, TimeUnit unit, IdiomSizing sizing, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            super(type, dp, name, sub, pub, Durability.Kind.VOLATILE, sizing);
             this.history = history;
+            this.minimumSeparationNanos = unit.toNanos(minimumSeparation);
+        }
+
+        /**
+         * Creates a soft state whose history depth and resource limits are
+         * derived from the given sizing.
+         */
+        public SoftState(Class<T> type, String name, IdiomSizing sizing, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            this(type, name, sizing.historyDepth(), 0, TimeUnit.MILLISECONDS, sizing, dp, sub, pub);
+        }
+
+        public SoftState(String name, Class<T> type, IdiomSizing sizing) {
+            this(type, name, sizing, VConfig.DefaultEntities.defaultDomainParticipant(), VConfig.DefaultEntities.defaultSub(), VConfig.DefaultEntities.defaultPub());
+        }
+
+        public SoftState(Class<T> type, String name, int history, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            this(type, name, history, 0, TimeUnit.MILLISECONDS, dp, sub, pub);
+        }
+
+        public SoftState(String name, Class<T> type, int history, long minimumSeparation, TimeUnit unit) {
+            this(type, name, history, minimumSeparation, unit, VConfig.DefaultEntities.defaultDomainParticipant(), VConfig.DefaultEntities.defaultSub(), VConfig.DefaultEntities.defaultPub());
         }
 
         public SoftState(Class<T> type, String name, int history, DomainParticipant dp) {
@@ -65,6 +100,16 @@ public class Idioms {
             return readerQos(sub, 1);
         }
 
+        private static DataReaderQos readerQos(Subscriber sub, int history, long minimumSeparationNanos) {
+            if (minimumSeparationNanos <= 0) {
+                return readerQos(sub, history);
+            }
+            final PolicyFactory pf = VConfig.DefaultEntities.defaultPolicyFactory();
+            return readerQos(sub, history).withPolicy(
+                    pf.TimeBasedFilter().withMinimumSeparation(minimumSeparationNanos, TimeUnit.NANOSECONDS)
+            );
+        }
+
         private static DataWriterQos writerQos(Publisher pub, int history) {
             final PolicyFactory pf = VConfig.DefaultEntities.defaultPolicyFactory();
 
@@ -94,13 +139,19 @@ public class Idioms {
 
         @Override
         protected DataReaderQos readerQos(Subscriber sub, Durability.Kind durability) {
-            return readerQos(sub, history);
+            return readerQos(sub, history, minimumSeparationNanos);
         }
 
         @Override
         protected DataWriterQos writerQos(Publisher pub, Durability.Kind durability) {
             return writerQos(pub, history);
         }
+
+        @Override
+        protected String localDeliveryKey() {
+            // the time based filter would not apply to local deliveries
+            return minimumSeparationNanos > 0 ? null : super.localDeliveryKey() + "/" + history;
+        }
     }
 
     public static class HardState<T> extends Idiom<T> {
@@ -109,10 +160,26 @@ public class Idioms {
 
 
         public HardState(String name, Class<T> type, Durability.Kind durability, int history, DomainParticipant dp, Subscriber sub, Publisher pub) {
-            super(type, dp, name, sub, pub, durability);
+            this(name, type, durability, history, null, dp, sub, pub);
+        }
+
+        private HardState(String name, Class<T> type, Durability.Kind durability, int history, IdiomSizing sizing, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            super(type, dp, name, sub, pub, durability, sizing);
             this.history = history;
         }
 
+        /**
+         * Creates a hard state whose history depth, resource limits and
+         * durability service limits are derived from the given sizing.
+         */
+        public HardState(String name, Class<T> type, Durability.Kind durability, IdiomSizing sizing, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            this(name, type, durability, sizing.historyDepth(), sizing, dp, sub, pub);
+        }
+
+        public HardState(String name, Class<T> type, Durability.Kind durability, IdiomSizing sizing) {
+            this(name, type, durability, sizing, VConfig.DefaultEntities.defaultDomainParticipant(), VConfig.DefaultEntities.defaultSub(), VConfig.DefaultEntities.defaultPub());
+        }
+
         public HardState(String name, Class<T> type, Durability.Kind durability, int history, DomainParticipant dp) {
             this(name, type, durability, history, dp, dp.createSubscriber(), dp.createPublisher());
         }
@@ -138,7 +205,7 @@ public class Idioms {
         }
 
         protected DataReaderQos readerQos(Subscriber sub, Durability.Kind durability) {
-            return readerQos(sub, durability, 1);
+            return readerQos(sub, durability, history);
         }
 
         private static DataWriterQos writerQos(Publisher pub, Durability.Kind durability, int history) {
@@ -153,7 +220,12 @@ public class Idioms {
         }
 
         protected DataWriterQos writerQos(Publisher pub, Durability.Kind durability) {
-            return writerQos(pub, durability, 1);
+            return writerQos(pub, durability, history);
+        }
+
+        @Override
+        protected String localDeliveryKey() {
+            return super.localDeliveryKey() + "/" + history;
         }
 
         protected TopicQos topicQos(DomainParticipant dp, Durability.Kind durability, ResourceLimits rlimits) {
@@ -162,17 +234,17 @@ public class Idioms {
             if (durability == Durability.Kind.PERSISTENT ||
                     durability == Durability.Kind.TRANSIENT) {
                 return dp.getDefaultTopicQos().withPolicies(
-                        pf.History().withKeepLast(1),
+                        pf.History().withKeepLast(history),
                         pf.Durability().withKind(durability),
                         pf.DurabilityService()
-                                .withHistoryDepth(1)
+                                .withHistoryDepth(history)
                                 .withHistoryKind(History.Kind.KEEP_LAST)
                                 .withMaxInstances(rlimits.getMaxInstances())
                                 .withMaxSamples(rlimits.getMaxSamples())
                                 .withMaxSamplesPerInstance(rlimits.getMaxSamplesPerInstance()));
             } else {
                 return dp.getDefaultTopicQos().withPolicies(
-                        pf.History().withKeepLast(1),
+                        pf.History().withKeepLast(history),
                         pf.Durability().withKind(durability));
             }
         }
@@ -229,4 +301,170 @@ public class Idioms {
             );
         }
     }
+
+    /**
+     * Pipelined request/reply over a pair of event topics, {@code name + "Request"}
+     * and {@code name + "Reply"}.
+     * <p/>
+     * Every request is tagged with a correlation id that is unique to this
+     * client and copied into the reply by the server, so any number of
+     * requests can be outstanding at once. Outstanding requests live in a
+     * concurrent table until their reply arrives or their timeout expires.
+     * <p/>
+     * Both topics are volatile, so requests written before a server is
+     * discovered, and replies written before the client is, are lost. Clients
+     * should wait for {@link #connect(long, TimeUnit)} before their first
+     * request.
+     */
+    public static class RequestReply<Req, Rep> {
+
+        /**
+         * How the correlation id is carried by the request and reply types.
+         */
+        public interface Correlation<Req, Rep> {
+            void setRequestId(Req request, long id);
+
+            long requestId(Req request);
+
+            void setReplyId(Rep reply, long id);
+
+            long replyId(Rep reply);
+        }
+
+        private final Event<Req> requests;
+        private final Event<Rep> replies;
+        private final Correlation<Req, Rep> correlation;
+        private final long timeoutMillis;
+        private final ConcurrentHashMap<Long, CompletableFuture<Rep>> pending = new ConcurrentHashMap<>();
+        private final AtomicLong sequence;
+        private volatile boolean listening = false;
+        private final LongAdder serveFailures = new LongAdder();
+
+        public RequestReply(String name, Class<Req> requestType, Class<Rep> replyType, Correlation<Req, Rep> correlation,
+                            long timeout, TimeUnit unit, DomainParticipant dp, Subscriber sub, Publisher pub) {
+            this.requests = new Event<>(name + "Request", requestType, Durability.Kind.VOLATILE, dp, sub, pub);
+            this.replies = new Event<>(name + "Reply", replyType, Durability.Kind.VOLATILE, dp, sub, pub);
+            this.correlation = correlation;
+            this.timeoutMillis = unit.toMillis(timeout);
+            // the upper half identifies this client among all the clients
+            // sharing the reply topic
+            this.sequence = new AtomicLong(((long) ThreadLocalRandom.current().nextInt()) << 32);
+        }
+
+        public RequestReply(String name, Class<Req> requestType, Class<Rep> replyType, Correlation<Req, Rep> correlation,
+                            long timeout, TimeUnit unit) {
+            this(name, requestType, replyType, correlation, timeout, unit, VConfig.DefaultEntities.defaultDomainParticipant(), VConfig.DefaultEntities.defaultSub(), VConfig.DefaultEntities.defaultPub());
+        }
+
+        /**
+         * Creates the client's request writer and reply reader, then
+         * completes once they are matched with at least one server, or
+         * exceptionally with a {@link TimeoutException}.
+         */
+        public CompletableFuture<RequestReply<Req, Rep>> connect(long timeout, TimeUnit unit) {
+            listen();
+            return requests.warmUp(1, -1, timeout, unit)
+                    .thenCombine(replies.warmUp(-1, 1, timeout, unit), (a, b) -> this);
+        }
+
+        private void listen() {
+            if (!listening) {
+                synchronized (this) {
+                    if (!listening) {
+                        replies.consume(this::onReply);
+                        listening = true;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sends the request without waiting for earlier requests to be
+         * answered. The future completes with the reply, or exceptionally
+         * with a {@link TimeoutException} when none arrives in time.
+         */
+        public CompletableFuture<Rep> request(Req request) {
+            listen();
+            final long id = sequence.incrementAndGet();
+            final CompletableFuture<Rep> future = new CompletableFuture<>();
+            pending.put(id, future);
+            final ScheduledFuture<?> expiry = Timers.shared().schedule(() -> {
+                final CompletableFuture<Rep> f = pending.remove(id);
+                if (f != null) {
+                    // the stages of the caller must not run on the shared timer
+                    ForkJoinPool.commonPool().execute(() ->
+                            f.completeExceptionally(new TimeoutException("No reply to request " + id + " within " + timeoutMillis + "ms")));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, e) -> expiry.cancel(false));
+
+            correlation.setRequestId(request, id);
+            try {
+                requests.write(request);
+            } catch (TimeoutException | RuntimeException e) {
+                pending.remove(id);
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        private void onReply(Sample<Rep> s) {
+            final Rep reply = s.getData();
+            if (reply == null || s.getInstanceState() != InstanceState.ALIVE) {
+                return;
+            }
+            final CompletableFuture<Rep> f = pending.remove(correlation.replyId(reply));
+            if (f != null) {
+                f.complete(reply);
+            }
+        }
+
+        /**
+         * Answers incoming requests with the handler, running it on the given
+         * executor. The reply writer is created right away so that clients
+         * can match it while {@link #connect(long, TimeUnit) connecting}.
+         * Requests the handler throws on, or whose reply cannot be written,
+         * are left unanswered and counted by {@link #serveFailures()}.
+         */
+        public void serve(Function<Req, Rep> handler, Executor executor) {
+            replies.writer();
+            requests.consume(s -> {
+                final Req request = s.getData();
+                if (request == null || s.getInstanceState() != InstanceState.ALIVE) {
+                    return;
+                }
+                executor.execute(() -> {
+                    try {
+                        final Rep reply = handler.apply(request);
+                        if (reply != null) {
+                            correlation.setReplyId(reply, correlation.requestId(request));
+                            replies.write(reply);
+                        }
+                    } catch (TimeoutException | RuntimeException e) {
+                        // the client only sees its own timeout
+                        serveFailures.increment();
+                    }
+                });
+            });
+        }
+
+        public void serve(Function<Req, Rep> handler) {
+            serve(handler, ForkJoinPool.commonPool());
+        }
+
+        /**
+         * Requests served that failed in the handler or while writing the
+         * reply.
+         */
+        public long serveFailures() {
+            return serveFailures.sum();
+        }
+
+        /**
+         * The number of requests still waiting for their reply.
+         */
+        public int outstanding() {
+            return pending.size();
+        }
+    }
 }
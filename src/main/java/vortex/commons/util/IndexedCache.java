@@ -0,0 +1,198 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.sub.InstanceState;
+import org.omg.dds.sub.Sample;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * A local cache of the latest value of every instance of an {@link Idiom},
+ * typically an {@link Idioms.HardState}, with secondary indexes on non key
+ * fields. Instances are evicted once disposed, not when their writers leave,
+ * so the state survives the restart of its producer.
+ * <p/>
+ * Indexes are sorted maps from the extracted field to the instances having
+ * that value, maintained incrementally on every update and dispose. Updates
+ * are serialized, while queries only read concurrent maps and immutable sets
+ * and never block.
+ */
+public class IndexedCache<T> {
+
+    public final class Index<K> {
+        private final String name;
+        private final Function<T, K> extractor;
+        private final ConcurrentSkipListMap<K, Set<InstanceHandle>> entries;
+
+        Index(String name, Function<T, K> extractor, Comparator<? super K> comparator) {
+            this.name = name;
+            this.extractor = extractor;
+            this.entries = new ConcurrentSkipListMap<>(comparator);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * The values whose indexed field equals {@code key}.
+         */
+        public List<T> get(K key) {
+            return resolve(entries.get(key), key, key, true, true);
+        }
+
+        /**
+         * The values whose indexed field is within the range, in index order.
+         */
+        public List<T> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+            final List<T> result = new ArrayList<>();
+            entries.subMap(from, fromInclusive, to, toInclusive).values()
+                    .forEach(handles -> result.addAll(resolve(handles, from, to, fromInclusive, toInclusive)));
+            return result;
+        }
+
+        public List<T> range(K from, K to) {
+            return range(from, true, to, false);
+        }
+
+        /**
+         * The number of distinct values of the indexed field.
+         */
+        public int cardinality() {
+            return entries.size();
+        }
+
+        private List<T> resolve(Set<InstanceHandle> handles, K from, K to, boolean fromInclusive, boolean toInclusive) {
+            if (handles == null) {
+                return Collections.emptyList();
+            }
+            final List<T> result = new ArrayList<>(handles.size());
+            for (InstanceHandle h : handles) {
+                final T value = values.get(h);
+                // the instance may have been updated since the set was read
+                if (value != null && within(extractor.apply(value), from, to, fromInclusive, toInclusive)) {
+                    result.add(value);
+                }
+            }
+            return result;
+        }
+
+        private boolean within(K key, K from, K to, boolean fromInclusive, boolean toInclusive) {
+            if (key == null) {
+                return false;
+            }
+            final Comparator<? super K> c = entries.comparator();
+            final int lo = c.compare(key, from);
+            final int hi = c.compare(key, to);
+            return (fromInclusive ? lo >= 0 : lo > 0) && (toInclusive ? hi <= 0 : hi < 0);
+        }
+
+        void add(InstanceHandle h, T value) {
+            final K key = extractor.apply(value);
+            if (key != null) {
+                entries.compute(key, (k, handles) -> {
+                    final Set<InstanceHandle> copy = handles == null ? new HashSet<>() : new HashSet<>(handles);
+                    copy.add(h);
+                    return Collections.unmodifiableSet(copy);
+                });
+            }
+        }
+
+        void remove(InstanceHandle h, T value) {
+            final K key = extractor.apply(value);
+            if (key != null) {
+                entries.computeIfPresent(key, (k, handles) -> {
+                    if (!handles.contains(h)) {
+                        return handles;
+                    }
+                    final Set<InstanceHandle> copy = new HashSet<>(handles);
+                    copy.remove(h);
+                    return copy.isEmpty() ? null : Collections.unmodifiableSet(copy);
+                });
+            }
+        }
+
+        void update(InstanceHandle h, T previous, T value) {
+            if (previous != null) {
+                final K before = extractor.apply(previous);
+                final K after = extractor.apply(value);
+                if (before != null && after != null && entries.comparator().compare(before, after) == 0) {
+                    return;
+                }
+                remove(h, previous);
+            }
+            add(h, value);
+        }
+    }
+
+    private final ConcurrentHashMap<InstanceHandle, T> values = new ConcurrentHashMap<>();
+    private final List<Index<?>> indexes = new CopyOnWriteArrayList<>();
+    private final Object updates = new Object();
+
+    public IndexedCache(Idiom<T> idiom) {
+        idiom.observe(this::onSample);
+    }
+
+    public <K extends Comparable<? super K>> Index<K> index(String name, Function<T, K> extractor) {
+        return index(name, extractor, Comparator.naturalOrder());
+    }
+
+    /**
+     * Declares an index, built right away from the cached values and then
+     * kept up to date.
+     */
+    public <K> Index<K> index(String name, Function<T, K> extractor, Comparator<? super K> comparator) {
+        final Index<K> index = new Index<>(name, extractor, comparator);
+        synchronized (updates) {
+            values.forEach(index::add);
+            indexes.add(index);
+        }
+        return index;
+    }
+
+    public Optional<T> get(InstanceHandle instance) {
+        return Optional.ofNullable(values.get(instance));
+    }
+
+    public Collection<T> values() {
+        return Collections.unmodifiableCollection(values.values());
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private void onSample(Sample<T> s) {
+        final InstanceHandle h = s.getInstanceHandle();
+        synchronized (updates) {
+            if (s.getInstanceState() == InstanceState.NOT_ALIVE_DISPOSED) {
+                final T previous = values.remove(h);
+                if (previous != null) {
+                    indexes.forEach(i -> i.remove(h, previous));
+                }
+            } else if (s.getData() != null) {
+                final T value = s.getData();
+                final T previous = values.put(h, value);
+                indexes.forEach(i -> i.update(h, previous, value));
+            }
+        }
+    }
+}
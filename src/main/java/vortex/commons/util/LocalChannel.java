@@ -0,0 +1,196 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.domain.DomainParticipant;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The in process shortcut between the idioms of one participant sharing a
+ * topic and QoS, see {@link Idiom#enableLocalDelivery(int)}.
+ * <p/>
+ * Every subscription owns a bounded lock free ring, written by any number of
+ * local writers and drained by a dedicated thread that spins briefly before
+ * parking, until the subscription is closed. Only object references go
+ * through the ring, nothing is serialized or copied. A writer finding a ring
+ * still full after a few attempts drops the value for that subscription
+ * rather than waiting, as the consumer may be the writer itself.
+ */
+final class LocalChannel<T> {
+    private static final ConcurrentHashMap<DomainParticipant, ConcurrentHashMap<String, LocalChannel<?>>> channels =
+            new ConcurrentHashMap<>();
+    private static final int SPINS = 1000;
+
+    static final class Subscription<T> {
+        private final int mask;
+        private final AtomicReferenceArray<T> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong head = new AtomicLong();
+        private long tail = 0;
+        private final Thread drainer;
+        private volatile boolean parked = false;
+        private volatile boolean running = true;
+        private final LongAdder dropped = new LongAdder();
+
+        Subscription(String name, int capacity, Consumer<T> consumer) {
+            final int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            this.mask = size - 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+            this.drainer = new Thread(() -> drain(consumer), "vortex-local-" + name);
+            this.drainer.setDaemon(true);
+            this.drainer.start();
+        }
+
+        /**
+         * Multi producer offer, a slot is free when its sequence equals the
+         * claimed position and published by moving the sequence one ahead.
+         */
+        void offer(T value) {
+            int attempts = 0;
+            while (true) {
+                final long pos = head.get();
+                final int slot = (int) (pos & mask);
+                final long seq = sequences.get(slot);
+                if (seq == pos) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        slots.set(slot, value);
+                        sequences.set(slot, pos + 1);
+                        if (parked) {
+                            LockSupport.unpark(drainer);
+                        }
+                        return;
+                    }
+                } else if (seq < pos) {
+                    if (!running) {
+                        // nobody left to drain it
+                        return;
+                    }
+                    if (attempts++ >= SPINS) {
+                        dropped.increment();
+                        return;
+                    }
+                    // full, give the drainer a chance to catch up
+                    if (parked) {
+                        LockSupport.unpark(drainer);
+                    }
+                    Thread.yield();
+                }
+            }
+        }
+
+        private T poll() {
+            final int slot = (int) (tail & mask);
+            if (sequences.get(slot) != tail + 1) {
+                return null;
+            }
+            final T value = slots.get(slot);
+            slots.set(slot, null);
+            sequences.set(slot, tail + mask + 1);
+            tail++;
+            return value;
+        }
+
+        private void drain(Consumer<T> consumer) {
+            int idle = 0;
+            while (running) {
+                final T value = poll();
+                if (value != null) {
+                    idle = 0;
+                    consumer.accept(value);
+                } else if (idle++ >= SPINS) {
+                    parked = true;
+                    if (running && sequences.get((int) (tail & mask)) != tail + 1) {
+                        LockSupport.park(this);
+                    }
+                    parked = false;
+                    idle = 0;
+                }
+            }
+        }
+
+        /**
+         * Values dropped because the ring was full.
+         */
+        long dropped() {
+            return dropped.sum();
+        }
+
+        void close() {
+            running = false;
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private final Set<InstanceHandle> writers = ConcurrentHashMap.newKeySet();
+    private final List<Subscription<T>> subscriptions = new CopyOnWriteArrayList<>();
+
+    private LocalChannel() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> LocalChannel<T> of(DomainParticipant dp, String key) {
+        // publication handles are only meaningful within a participant
+        return (LocalChannel<T>) channels.computeIfAbsent(dp, p -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key, k -> new LocalChannel<T>());
+    }
+
+    void addWriter(InstanceHandle writer) {
+        writers.add(writer);
+    }
+
+    void removeWriter(InstanceHandle writer) {
+        writers.remove(writer);
+    }
+
+    /**
+     * Whether a sample received through the middleware was already delivered
+     * locally.
+     */
+    boolean isLocal(InstanceHandle publication) {
+        return writers.contains(publication);
+    }
+
+    Subscription<T> subscribe(String name, int capacity, Consumer<T> consumer) {
+        final Subscription<T> s = new Subscription<>(name, capacity, consumer);
+        subscriptions.add(s);
+        return s;
+    }
+
+    void unsubscribe(Subscription<T> s) {
+        subscriptions.remove(s);
+        s.close();
+    }
+
+    void publish(T value) {
+        for (Subscription<T> s : subscriptions) {
+            s.offer(value);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.event.LivelinessChangedEvent;
+import org.omg.dds.core.event.RequestedDeadlineMissedEvent;
+import org.omg.dds.core.event.SampleLostEvent;
+import org.omg.dds.core.event.SampleRejectedEvent;
+import org.omg.dds.core.status.SampleRejectedStatus;
+import org.omg.dds.sub.DataReader;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates the reader statuses that signal data loss into per topic
+ * counters and rate windows, so they can be inspected or fed to a
+ * {@link ResourceLimitAdvisor}.
+ * <p/>
+ * A single instance can be shared by the readers of several topics.
+ */
+public class MonitoringDataReaderListener<TYPE> extends BaseDataReaderListener<TYPE> {
+
+    public static class TopicStats {
+        private final String topic;
+        private final LongAdder lost = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder rejectedByInstances = new LongAdder();
+        private final LongAdder rejectedBySamples = new LongAdder();
+        private final LongAdder rejectedBySamplesPerInstance = new LongAdder();
+        private final LongAdder deadlineMissed = new LongAdder();
+        private final LongAdder livelinessLost = new LongAdder();
+        private final RateWindow lostRate = new RateWindow();
+        private final RateWindow rejectedRate = new RateWindow();
+        private final RateWindow deadlineMissedRate = new RateWindow();
+        private volatile int aliveWriters;
+
+        TopicStats(String topic) {
+            this.topic = topic;
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        public long lost() {
+            return lost.sum();
+        }
+
+        public long rejected() {
+            return rejected.sum();
+        }
+
+        public long rejectedByInstancesLimit() {
+            return rejectedByInstances.sum();
+        }
+
+        public long rejectedBySamplesLimit() {
+            return rejectedBySamples.sum();
+        }
+
+        public long rejectedBySamplesPerInstanceLimit() {
+            return rejectedBySamplesPerInstance.sum();
+        }
+
+        public long deadlineMissed() {
+            return deadlineMissed.sum();
+        }
+
+        public long livelinessLost() {
+            return livelinessLost.sum();
+        }
+
+        public int aliveWriters() {
+            return aliveWriters;
+        }
+
+        public double lostPerSecond() {
+            return lostRate.perSecond();
+        }
+
+        public double rejectedPerSecond() {
+            return rejectedRate.perSecond();
+        }
+
+        public double deadlineMissedPerSecond() {
+            return deadlineMissedRate.perSecond();
+        }
+
+        @Override
+        public String toString() {
+            return "TopicStats{topic='" + topic + '\'' +
+                    ", lost=" + lost() +
+                    ", rejected=" + rejected() +
+                    ", deadlineMissed=" + deadlineMissed() +
+                    ", livelinessLost=" + livelinessLost() +
+                    ", aliveWriters=" + aliveWriters + '}';
+        }
+    }
+
+    private final ConcurrentHashMap<String, TopicStats> stats = new ConcurrentHashMap<>();
+
+    public TopicStats stats(String topic) {
+        return stats.computeIfAbsent(topic, TopicStats::new);
+    }
+
+    public Map<String, TopicStats> stats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private TopicStats stats(DataReader<TYPE> reader) {
+        return stats(reader.getTopicDescription().getName());
+    }
+
+    @Override
+    public void onSampleLost(SampleLostEvent<TYPE> sampleLostEvent) {
+        final int change = sampleLostEvent.getStatus().getTotalCountChange();
+        final TopicStats s = stats(sampleLostEvent.getSource());
+        s.lost.add(change);
+        s.lostRate.add(change);
+    }
+
+    @Override
+    public void onSampleRejected(SampleRejectedEvent<TYPE> sampleRejectedEvent) {
+        final SampleRejectedStatus status = sampleRejectedEvent.getStatus();
+        final int change = status.getTotalCountChange();
+        final TopicStats s = stats(sampleRejectedEvent.getSource());
+        s.rejected.add(change);
+        s.rejectedRate.add(change);
+        switch (status.getLastReason()) {
+            case REJECTED_BY_INSTANCES_LIMIT:
+                s.rejectedByInstances.add(change);
+                break;
+            case REJECTED_BY_SAMPLES_LIMIT:
+                s.rejectedBySamples.add(change);
+                break;
+            case REJECTED_BY_SAMPLES_PER_INSTANCE_LIMIT:
+                s.rejectedBySamplesPerInstance.add(change);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onRequestedDeadlineMissed(RequestedDeadlineMissedEvent<TYPE> requestedDeadlineMissedEvent) {
+        final int change = requestedDeadlineMissedEvent.getStatus().getTotalCountChange();
+        final TopicStats s = stats(requestedDeadlineMissedEvent.getSource());
+        s.deadlineMissed.add(change);
+        s.deadlineMissedRate.add(change);
+    }
+
+    @Override
+    public void onLivelinessChanged(LivelinessChangedEvent<TYPE> livelinessChangedEvent) {
+        final TopicStats s = stats(livelinessChangedEvent.getSource());
+        s.aliveWriters = livelinessChangedEvent.getStatus().getAliveCount();
+        final int notAliveChange = livelinessChangedEvent.getStatus().getNotAliveCountChange();
+        if (notAliveChange > 0) {
+            s.livelinessLost.add(notAliveChange);
+        }
+    }
+}
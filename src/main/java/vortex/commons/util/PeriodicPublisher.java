@@ -0,0 +1,211 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.pub.Publisher;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Publishes cyclic topics, typically {@link Idioms.SoftState}, from a single
+ * thread driving a hashed timer wheel.
+ * <p/>
+ * Every registration writes the value of its supplier to its idiom once per
+ * period. Registrations falling due on the same tick are written together,
+ * between suspended and resumed publications of their publisher. A
+ * registration that could not be served within its period counts the cycles
+ * it skipped as missed deadlines and stays aligned on its original phase.
+ */
+public class PeriodicPublisher implements AutoCloseable {
+
+    public final class Registration<T> {
+        private final Idiom<T> idiom;
+        private final Supplier<T> supplier;
+        private final long periodNanos;
+        private long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private final LongAdder writes = new LongAdder();
+        private final LongAdder missed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder jitterNanos = new LongAdder();
+        private final AtomicLong maxJitterNanos = new AtomicLong();
+
+        Registration(Idiom<T> idiom, Supplier<T> supplier, long periodNanos, long deadline) {
+            this.idiom = idiom;
+            this.supplier = supplier;
+            this.periodNanos = periodNanos;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public long writes() {
+            return writes.sum();
+        }
+
+        public long missedDeadlines() {
+            return missed.sum();
+        }
+
+        public long failedWrites() {
+            return failed.sum();
+        }
+
+        /**
+         * The mean delay between the deadlines and the actual writes.
+         */
+        public long meanJitter(TimeUnit unit) {
+            final long n = writes.sum() + failed.sum();
+            return n == 0 ? 0 : unit.convert(jitterNanos.sum() / n, TimeUnit.NANOSECONDS);
+        }
+
+        public long maxJitter(TimeUnit unit) {
+            return unit.convert(maxJitterNanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        void fire(long now) {
+            final long jitter = Math.max(0, now - deadline);
+            jitterNanos.add(jitter);
+            maxJitterNanos.accumulateAndGet(jitter, Math::max);
+            try {
+                idiom.write(supplier.get());
+                writes.increment();
+            } catch (TimeoutException | RuntimeException e) {
+                failed.increment();
+            }
+            final long late = (now - deadline) / periodNanos;
+            if (late > 0) {
+                missed.add(late);
+            }
+            deadline += (late + 1) * periodNanos;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<List<Registration<?>>> wheel;
+    private final Queue<Registration<?>> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long start;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * @param wheelSize rounded up to a power of two
+     */
+    public PeriodicPublisher(long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tick);
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("The tick must be positive");
+        }
+        final int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.start = System.nanoTime();
+        this.thread = new Thread(this::run, "vortex-periodic-publisher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * One millisecond ticks on a 1024 slot wheel, a full turn per second.
+     */
+    public PeriodicPublisher() {
+        this(1, TimeUnit.MILLISECONDS, 1024);
+    }
+
+    public <T> Registration<T> register(Idiom<T> idiom, Supplier<T> supplier, long period, TimeUnit unit) {
+        final long periodNanos = unit.toNanos(period);
+        if (periodNanos < tickNanos) {
+            throw new IllegalArgumentException("The period cannot be shorter than the tick");
+        }
+        final Registration<T> r = new Registration<>(idiom, supplier, periodNanos, System.nanoTime() + periodNanos);
+        added.add(r);
+        return r;
+    }
+
+    private void schedule(Registration<?> r) {
+        final long due = Math.max(tick + 1, (r.deadline - start + tickNanos - 1) / tickNanos);
+        r.rounds = (due - tick - 1) >> Integer.bitCount(mask);
+        wheel.get((int) (due & mask)).add(r);
+    }
+
+    private void run() {
+        final Map<Publisher, List<Registration<?>>> batches = new IdentityHashMap<>();
+        while (running) {
+            final long next = start + (tick + 1) * tickNanos;
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+                if (!running) {
+                    return;
+                }
+            }
+            tick++;
+
+            Registration<?> r;
+            while ((r = added.poll()) != null) {
+                schedule(r);
+            }
+
+            final List<Registration<?>> slot = wheel.get((int) (tick & mask));
+            final Iterator<Registration<?>> it = slot.iterator();
+            while (it.hasNext()) {
+                final Registration<?> due = it.next();
+                if (due.cancelled) {
+                    it.remove();
+                } else if (due.rounds > 0) {
+                    due.rounds--;
+                } else {
+                    it.remove();
+                    batches.computeIfAbsent(due.idiom.pub, p -> new ArrayList<>()).add(due);
+                }
+            }
+
+            for (Map.Entry<Publisher, List<Registration<?>>> batch : batches.entrySet()) {
+                final Publisher pub = batch.getKey();
+                pub.suspendPublications();
+                try {
+                    final long now = System.nanoTime();
+                    batch.getValue().forEach(b -> b.fire(now));
+                } finally {
+                    pub.resumePublications();
+                }
+                batch.getValue().forEach(this::schedule);
+            }
+            batches.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free sliding window counter made of fixed width buckets.
+ */
+public class RateWindow {
+    private final int buckets;
+    private final long bucketNanos;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray epochs;
+
+    public RateWindow(int buckets, long bucketWidth, TimeUnit unit) {
+        if (buckets < 1 || bucketWidth <= 0) {
+            throw new IllegalArgumentException("A rate window needs at least one bucket of positive width");
+        }
+        this.buckets = buckets;
+        this.bucketNanos = unit.toNanos(bucketWidth);
+        this.counts = new AtomicLongArray(buckets);
+        this.epochs = new AtomicLongArray(buckets);
+    }
+
+    /**
+     * Ten one second buckets.
+     */
+    public RateWindow() {
+        this(10, 1, TimeUnit.SECONDS);
+    }
+
+    public void add(long delta) {
+        final long epoch = System.nanoTime() / bucketNanos;
+        final int slot = (int) Math.floorMod(epoch, (long) buckets);
+        long current = epochs.get(slot);
+        while (current != epoch) {
+            if (epochs.compareAndSet(slot, current, epoch)) {
+                // a stale bucket, the first writer of the new epoch resets it
+                counts.set(slot, 0);
+                break;
+            }
+            current = epochs.get(slot);
+        }
+        counts.addAndGet(slot, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * The total count over the buckets still inside the window.
+     */
+    public long sum() {
+        final long epoch = System.nanoTime() / bucketNanos;
+        long sum = 0;
+        for (int i = 0; i < buckets; i++) {
+            if (epoch - epochs.get(i) < buckets) {
+                sum += counts.get(i);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The average number of events per second over the window.
+     */
+    public double perSecond() {
+        return sum() * (double) TimeUnit.SECONDS.toNanos(1) / (buckets * bucketNanos);
+    }
+
+    public long window(TimeUnit unit) {
+        return unit.convert(buckets * bucketNanos, TimeUnit.NANOSECONDS);
+    }
+}
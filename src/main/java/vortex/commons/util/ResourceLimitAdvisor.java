@@ -0,0 +1,172 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.policy.History;
+import org.omg.dds.core.policy.PolicyFactory;
+import org.omg.dds.core.policy.ResourceLimits;
+import org.omg.dds.sub.DataReaderQos;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns the statuses collected by a {@link MonitoringDataReaderListener} into
+ * a better history depth and {@link ResourceLimits} for an {@link Idiom}.
+ * <p/>
+ * Every call to {@link #advise(Idiom, MonitoringDataReaderListener)} looks at
+ * what happened since the previous call for the same topic: samples rejected
+ * on a limit double that limit, samples lost on a keep last reader double its
+ * depth up to {@code maxHistory}. When created with {@code apply} set, the
+ * recommendation is also applied with {@link Idiom#resizeReader}, which
+ * replaces the reader: its observers are then delivered the durable history
+ * of the topic again.
+ */
+public class ResourceLimitAdvisor {
+    private static final int UNLIMITED = -1;
+
+    public static class Recommendation {
+        private final String topic;
+        private final History history;
+        private final ResourceLimits limits;
+        private final List<String> evidence;
+
+        Recommendation(String topic, History history, ResourceLimits limits, List<String> evidence) {
+            this.topic = topic;
+            this.history = history;
+            this.limits = limits;
+            this.evidence = Collections.unmodifiableList(evidence);
+        }
+
+        public String topic() {
+            return topic;
+        }
+
+        public History history() {
+            return history;
+        }
+
+        public ResourceLimits limits() {
+            return limits;
+        }
+
+        public List<String> evidence() {
+            return evidence;
+        }
+
+        @Override
+        public String toString() {
+            return "Recommendation{topic='" + topic + '\'' +
+                    ", history=" + history.getKind() + "/" + history.getDepth() +
+                    ", maxSamples=" + limits.getMaxSamples() +
+                    ", maxInstances=" + limits.getMaxInstances() +
+                    ", maxSamplesPerInstance=" + limits.getMaxSamplesPerInstance() +
+                    ", evidence=" + evidence + '}';
+        }
+    }
+
+    private final int maxHistory;
+    private final boolean apply;
+    private final ConcurrentHashMap<String, long[]> seen = new ConcurrentHashMap<>();
+    private final LongAdder recommendations = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+
+    public ResourceLimitAdvisor(int maxHistory, boolean apply) {
+        this.maxHistory = maxHistory;
+        this.apply = apply;
+    }
+
+    public ResourceLimitAdvisor() {
+        this(1024, false);
+    }
+
+    public <T> Optional<Recommendation> advise(Idiom<T> idiom, MonitoringDataReaderListener<T> monitor) {
+        final MonitoringDataReaderListener.TopicStats stats = monitor.stats(idiom.name);
+        final long[] now = {
+                stats.rejectedByInstancesLimit(),
+                stats.rejectedBySamplesLimit(),
+                stats.rejectedBySamplesPerInstanceLimit(),
+                stats.lost()
+        };
+        final long[] before = seen.put(idiom.name, now);
+        final long[] delta = new long[now.length];
+        for (int i = 0; i < now.length; i++) {
+            delta[i] = now[i] - (before == null ? 0 : before[i]);
+        }
+
+        final PolicyFactory pf = VConfig.DefaultEntities.defaultPolicyFactory();
+        final DataReaderQos qos = idiom.reader().getQos();
+        History history = qos.getHistory();
+        int maxInstances = qos.getResourceLimits().getMaxInstances();
+        int maxSamples = qos.getResourceLimits().getMaxSamples();
+        int maxSamplesPerInstance = qos.getResourceLimits().getMaxSamplesPerInstance();
+        final List<String> evidence = new ArrayList<>();
+
+        if (delta[0] > 0 && maxInstances != UNLIMITED) {
+            evidence.add(delta[0] + " samples rejected by max instances " + maxInstances);
+            maxInstances *= 2;
+        }
+        if (delta[1] > 0 && maxSamples != UNLIMITED) {
+            evidence.add(delta[1] + " samples rejected by max samples " + maxSamples);
+            maxSamples *= 2;
+        }
+        if (delta[2] > 0 && maxSamplesPerInstance != UNLIMITED) {
+            evidence.add(delta[2] + " samples rejected by max samples per instance " + maxSamplesPerInstance);
+            maxSamplesPerInstance *= 2;
+        }
+        if (delta[3] > 0 && history.getKind() == History.Kind.KEEP_LAST && history.getDepth() < maxHistory) {
+            final int depth = Math.min(maxHistory, history.getDepth() * 2);
+            evidence.add(delta[3] + " samples lost with history depth " + history.getDepth());
+            history = pf.History().withKeepLast(depth);
+        }
+        if (evidence.isEmpty()) {
+            return Optional.empty();
+        }
+
+        // keep the limits consistent with each other, as the middleware
+        // refuses to create a reader otherwise
+        if (history.getKind() == History.Kind.KEEP_LAST && maxSamplesPerInstance != UNLIMITED) {
+            maxSamplesPerInstance = Math.max(maxSamplesPerInstance, history.getDepth());
+        }
+        if (maxSamples != UNLIMITED && maxSamplesPerInstance != UNLIMITED) {
+            maxSamples = Math.max(maxSamples, maxSamplesPerInstance);
+        }
+
+        final Recommendation r = new Recommendation(idiom.name, history,
+                pf.ResourceLimits()
+                        .withMaxInstances(maxInstances)
+                        .withMaxSamples(maxSamples)
+                        .withMaxSamplesPerInstance(maxSamplesPerInstance),
+                evidence);
+        recommendations.increment();
+        if (apply) {
+            idiom.resizeReader(r.history(), r.limits());
+            applied.increment();
+        }
+        return Optional.of(r);
+    }
+
+    public long recommendations() {
+        return recommendations.sum();
+    }
+
+    public long applied() {
+        return applied.sum();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+final class Timers {
+    private static final ScheduledThreadPoolExecutor shared = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread t = new Thread(r, "vortex-commons-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        // timeouts are mostly cancelled, do not keep them queued until they expire
+        shared.setRemoveOnCancelPolicy(true);
+    }
+
+    private Timers() {
+    }
+
+    /**
+     * A daemon scheduler for short housekeeping tasks such as timeouts, which
+     * must never block.
+     */
+    static ScheduledExecutorService shared() {
+        return shared;
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.omg.dds.core.InstanceHandle;
+import org.omg.dds.sub.InstanceState;
+import org.omg.dds.sub.Sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Count, sum, min, max and mean of a numeric field over tumbling or sliding
+ * time windows, per instance of an input {@link Idiom}, written as results to
+ * an output {@link Idiom}.
+ * <p/>
+ * Windows are split in panes as long as the largest period dividing both the
+ * window and the slide. A sample only updates the accumulator of its pane so
+ * the cost per sample is constant, and panes are combined once per emitted
+ * window. Windows are closed when a later pane
+ * is reached, either by a newer sample of the same instance or by the
+ * periodic sweep which also evicts the instances whose panes are all empty.
+ */
+public class WindowedAggregator<T, R> implements AutoCloseable {
+
+    public enum TimeBase {
+        SOURCE, ARRIVAL
+    }
+
+    public static class Aggregate<T> {
+        private final InstanceHandle instance;
+        private final T last;
+        private final long start;
+        private final long end;
+        private final long count;
+        private final double sum;
+        private final double min;
+        private final double max;
+
+        Aggregate(InstanceHandle instance, T last, long start, long end, long count, double sum, double min, double max) {
+            this.instance = instance;
+            this.last = last;
+            this.start = start;
+            this.end = end;
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public InstanceHandle instance() {
+            return instance;
+        }
+
+        /**
+         * The latest sample of the instance, e.g. to copy its key fields.
+         */
+        public T last() {
+            return last;
+        }
+
+        public long start(TimeUnit unit) {
+            return unit.convert(start, TimeUnit.MILLISECONDS);
+        }
+
+        public long end(TimeUnit unit) {
+            return unit.convert(end, TimeUnit.MILLISECONDS);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double sum() {
+            return sum;
+        }
+
+        public double min() {
+            return min;
+        }
+
+        public double max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? Double.NaN : sum / count;
+        }
+    }
+
+    private static final class Pane {
+        long count;
+        double sum;
+        double min;
+        double max;
+
+        void add(double v) {
+            if (count == 0) {
+                min = v;
+                max = v;
+            } else {
+                if (v < min) {
+                    min = v;
+                }
+                if (v > max) {
+                    max = v;
+                }
+            }
+            count++;
+            sum += v;
+        }
+
+        void reset() {
+            count = 0;
+            sum = 0;
+        }
+    }
+
+    final class KeyState {
+        final InstanceHandle instance;
+        final Pane[] panes = new Pane[panesPerWindow];
+        long current = Long.MIN_VALUE;
+        T last;
+        boolean evicted;
+
+        KeyState(InstanceHandle instance) {
+            this.instance = instance;
+            for (int i = 0; i < panes.length; i++) {
+                panes[i] = new Pane();
+            }
+        }
+
+        boolean add(long pane, double value, T data, List<Aggregate<T>> out) {
+            if (current == Long.MIN_VALUE) {
+                current = pane;
+            }
+            if (pane <= current - panesPerWindow) {
+                return false;
+            }
+            advance(pane, out);
+            panes[(int) Math.floorMod(pane, (long) panesPerWindow)].add(value);
+            last = data;
+            return true;
+        }
+
+        /**
+         * Emits every window ending before {@code pane} and clears the panes
+         * that fall out of it.
+         */
+        void advance(long pane, List<Aggregate<T>> out) {
+            if (current == Long.MIN_VALUE) {
+                return;
+            }
+            // a full window later every pane has been cleared, nothing is
+            // left to emit
+            final long stop = Math.min(pane, current + panesPerWindow);
+            for (long p = current; p < stop; p++) {
+                emit(p, out);
+                panes[(int) Math.floorMod(p + 1, (long) panesPerWindow)].reset();
+            }
+            current = Math.max(current, pane);
+        }
+
+        private void emit(long endPane, List<Aggregate<T>> out) {
+            long count = 0;
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (Pane p : panes) {
+                if (p.count > 0) {
+                    count += p.count;
+                    sum += p.sum;
+                    min = Math.min(min, p.min);
+                    max = Math.max(max, p.max);
+                }
+            }
+            if (count > 0 && (endPane + 1) % panesPerSlide == 0) {
+                final long end = (endPane + 1) * paneMillis;
+                out.add(new Aggregate<>(instance, last, end - windowMillis, end, count, sum, min, max));
+            }
+        }
+
+        boolean isEmpty() {
+            for (Pane p : panes) {
+                if (p.count > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Idiom<T> input;
+    private final ToDoubleFunction<T> value;
+    private final TimeBase timeBase;
+    private final Function<Aggregate<T>, R> result;
+    private final Idiom<R> output;
+    private final long windowMillis;
+    private final long paneMillis;
+    private final int panesPerWindow;
+    private final int panesPerSlide;
+    private final int maxInstances;
+    private final ConcurrentHashMap<InstanceHandle, KeyState> state = new ConcurrentHashMap<>();
+    private final AtomicLong watermark = new AtomicLong(Long.MIN_VALUE);
+    // the sweep writes results, which may block, so it gets its own thread
+    // rather than the shared timers
+    private volatile ScheduledExecutorService sweeper;
+
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private WindowedAggregator(Idiom<T> input, ToDoubleFunction<T> value, long size, long slide, TimeUnit unit,
+                               TimeBase timeBase, int maxInstances, Function<Aggregate<T>, R> result, Idiom<R> output) {
+        this.windowMillis = unit.toMillis(size);
+        final long slideMillis = unit.toMillis(slide);
+        if (slideMillis <= 0 || windowMillis < slideMillis) {
+            throw new IllegalArgumentException("The slide must be positive and no longer than the window");
+        }
+        this.paneMillis = gcd(windowMillis, slideMillis);
+        this.panesPerWindow = (int) (windowMillis / paneMillis);
+        this.panesPerSlide = (int) (slideMillis / paneMillis);
+        this.input = input;
+        this.value = value;
+        this.timeBase = timeBase;
+        this.maxInstances = maxInstances;
+        this.result = result;
+        this.output = output;
+    }
+
+    public static <T, R> WindowedAggregator<T, R> tumbling(Idiom<T> input, ToDoubleFunction<T> value, long size, TimeUnit unit,
+                                                          TimeBase timeBase, Function<Aggregate<T>, R> result, Idiom<R> output) {
+        return new WindowedAggregator<>(input, value, size, size, unit, timeBase, Integer.MAX_VALUE, result, output);
+    }
+
+    public static <T, R> WindowedAggregator<T, R> sliding(Idiom<T> input, ToDoubleFunction<T> value, long size, long slide, TimeUnit unit,
+                                                         TimeBase timeBase, Function<Aggregate<T>, R> result, Idiom<R> output) {
+        return new WindowedAggregator<>(input, value, size, slide, unit, timeBase, Integer.MAX_VALUE, result, output);
+    }
+
+    /**
+     * Limits how many instances hold window state, samples of further
+     * instances are dropped until others get evicted.
+     */
+    public WindowedAggregator<T, R> withMaxInstances(int max) {
+        return new WindowedAggregator<>(input, value, windowMillis, paneMillis * panesPerSlide, TimeUnit.MILLISECONDS,
+                timeBase, max, result, output);
+    }
+
+    public WindowedAggregator<T, R> start() {
+        input.observe(this::onSample);
+        final ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, "vortex-window-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        s.scheduleWithFixedDelay(this::sweep, paneMillis, paneMillis, TimeUnit.MILLISECONDS);
+        sweeper = s;
+        return this;
+    }
+
+    @Override
+    public void close() {
+        final ScheduledExecutorService s = sweeper;
+        if (s != null) {
+            s.shutdownNow();
+        }
+    }
+
+    private void onSample(Sample<T> s) {
+        final List<Aggregate<T>> out = new ArrayList<>();
+        final InstanceHandle instance = s.getInstanceHandle();
+        if (s.getData() == null || s.getInstanceState() != InstanceState.ALIVE) {
+            // the instance is gone, close its windows and forget it
+            final KeyState ks = state.remove(instance);
+            if (ks != null) {
+                synchronized (ks) {
+                    ks.evicted = true;
+                    ks.advance(ks.current + panesPerWindow + 1, out);
+                }
+            }
+            publish(out);
+            return;
+        }
+        samples.increment();
+        final long time = timeBase == TimeBase.SOURCE ?
+                s.getSourceTimestamp().getTime(TimeUnit.MILLISECONDS) : System.currentTimeMillis();
+        watermark.accumulateAndGet(time, Math::max);
+
+        boolean added = false;
+        while (!added) {
+            KeyState ks = state.get(instance);
+            if (ks == null) {
+                if (state.size() >= maxInstances) {
+                    dropped.increment();
+                    return;
+                }
+                ks = state.computeIfAbsent(instance, KeyState::new);
+            }
+            synchronized (ks) {
+                // the sweep may have evicted it in the meantime
+                if (!ks.evicted) {
+                    if (!ks.add(Math.floorDiv(time, paneMillis), value.applyAsDouble(s.getData()), s.getData(), out)) {
+                        late.increment();
+                    }
+                    added = true;
+                }
+            }
+        }
+        publish(out);
+    }
+
+    private void sweep() {
+        final long now = timeBase == TimeBase.SOURCE ? watermark.get() : System.currentTimeMillis();
+        if (now == Long.MIN_VALUE) {
+            return;
+        }
+        final long pane = Math.floorDiv(now, paneMillis);
+        final List<Aggregate<T>> out = new ArrayList<>();
+        state.forEach((instance, ks) -> {
+            synchronized (ks) {
+                ks.advance(pane, out);
+                if (ks.isEmpty()) {
+                    ks.evicted = true;
+                    state.remove(instance, ks);
+                }
+            }
+        });
+        publish(out);
+    }
+
+    private void publish(List<Aggregate<T>> out) {
+        for (Aggregate<T> a : out) {
+            try {
+                output.write(result.apply(a));
+                emitted.increment();
+            } catch (TimeoutException e) {
+                failed.increment();
+            }
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    public int instances() {
+        return state.size();
+    }
+
+    public long samples() {
+        return samples.sum();
+    }
+
+    /**
+     * Samples older than the oldest open window of their instance.
+     */
+    public long late() {
+        return late.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long emitted() {
+        return emitted.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+}
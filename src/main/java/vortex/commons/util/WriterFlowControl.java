@@ -0,0 +1,232 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Adaptive pacing for an {@link Idiom} writer.
+ * <p/>
+ * Writes are paced by a token bucket whose refill rate is adjusted with AIMD:
+ * every write that the bucket limited, and that does not block for longer
+ * than the blocking threshold, adds roughly {@code additiveIncrease} writes/s
+ * per second of traffic, while a
+ * write that blocks too long or times out multiplies the rate by
+ * {@code decreaseFactor}. Changes in the number of matched readers rescale the
+ * rate as well, so a late joining reader does not immediately have to absorb
+ * the full rate negotiated with the previous set of readers. Light traffic
+ * never raises the rate, so bursts that follow it are still smoothed.
+ */
+public class WriterFlowControl {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double initialRate;
+    private final double minRate;
+    private final double maxRate;
+    private final double burst;
+    private final double additiveIncrease;
+    private final double decreaseFactor;
+    private final long blockingThresholdNanos;
+    private final long decreaseHoldOffNanos;
+
+    // guarded by this
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+    private int matched;
+    // whether the bucket ran out of tokens since the last completed write
+    private boolean limited;
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder throttledWrites = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+    private final LongAdder blockedWrites = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    public WriterFlowControl(double initialRate, double minRate, double maxRate, double burst,
+                             double additiveIncrease, double decreaseFactor,
+                             long blockingThreshold, TimeUnit unit) {
+        if (minRate <= 0 || minRate > maxRate || initialRate < minRate || initialRate > maxRate) {
+            throw new IllegalArgumentException("Rates must satisfy 0 < minRate <= initialRate <= maxRate");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Burst must allow at least one write");
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("Decrease factor must be in (0, 1)");
+        }
+        this.initialRate = initialRate;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.burst = burst;
+        this.additiveIncrease = additiveIncrease;
+        this.decreaseFactor = decreaseFactor;
+        this.blockingThresholdNanos = unit.toNanos(blockingThreshold);
+        // a single congestion episode usually shows up on a whole burst of
+        // writes, only back off once per threshold period for it
+        this.decreaseHoldOffNanos = Math.max(this.blockingThresholdNanos, TimeUnit.MILLISECONDS.toNanos(10));
+
+        this.rate = initialRate;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.lastDecrease = this.lastRefill - this.decreaseHoldOffNanos;
+    }
+
+    public WriterFlowControl(double initialRate, double minRate, double maxRate) {
+        this(initialRate, minRate, maxRate, Math.max(1, initialRate / 10), Math.max(1, minRate), 0.5, 1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocks the caller until the bucket allows one more write, or until it
+     * is interrupted, in which case it returns early with the interrupt flag
+     * still set.
+     */
+    public void acquire() {
+        long waitNanos;
+        synchronized (this) {
+            refill(System.nanoTime());
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / rate);
+            if (tokens < 1) {
+                limited = true;
+            }
+        }
+        writes.increment();
+        if (waitNanos > 0) {
+            throttledWrites.increment();
+            throttledNanos.add(waitNanos);
+            final long deadline = System.nanoTime() + waitNanos;
+            long remaining = waitNanos;
+            while (remaining > 0) {
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Feeds back the time the middleware spent inside a successful write.
+     */
+    public void onWriteCompleted(long writeNanos) {
+        if (writeNanos > blockingThresholdNanos) {
+            blockedWrites.increment();
+            blockedNanos.add(writeNanos);
+            decrease(false);
+        } else {
+            synchronized (this) {
+                if (limited) {
+                    limited = false;
+                    rate = Math.min(maxRate, rate + additiveIncrease / rate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds back a write that failed with a {@link java.util.concurrent.TimeoutException}.
+     */
+    public void onWriteTimeout() {
+        timeouts.increment();
+        decrease(true);
+    }
+
+    public synchronized void onPublicationMatched(int currentCount) {
+        if (currentCount <= 0) {
+            rate = initialRate;
+        } else if (matched > 0 && currentCount > matched) {
+            rate = Math.max(minRate, rate * matched / currentCount);
+        }
+        matched = Math.max(0, currentCount);
+    }
+
+    private void decrease(boolean force) {
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (!force && now - lastDecrease < decreaseHoldOffNanos) {
+                return;
+            }
+            lastDecrease = now;
+            refill(now);
+            rate = Math.max(minRate, rate * decreaseFactor);
+            tokens = Math.min(tokens, 0);
+        }
+        decreases.increment();
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            tokens = Math.min(burst, tokens + elapsed * rate / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * The number of writes per second currently allowed.
+     */
+    public synchronized double rate() {
+        return rate;
+    }
+
+    public synchronized int matchedReaders() {
+        return matched;
+    }
+
+    public long writes() {
+        return writes.sum();
+    }
+
+    public long throttledWrites() {
+        return throttledWrites.sum();
+    }
+
+    public long throttledTime(TimeUnit unit) {
+        return unit.convert(throttledNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long blockedWrites() {
+        return blockedWrites.sum();
+    }
+
+    public long blockedTime(TimeUnit unit) {
+        return unit.convert(blockedNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long timeouts() {
+        return timeouts.sum();
+    }
+
+    public long rateDecreases() {
+        return decreases.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "WriterFlowControl{rate=" + rate() +
+                ", writes=" + writes() +
+                ", throttledWrites=" + throttledWrites() +
+                ", blockedWrites=" + blockedWrites() +
+                ", timeouts=" + timeouts() +
+                ", rateDecreases=" + rateDecreases() + '}';
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * PrismTech licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License and with the PrismTech Vortex product. You may obtain a copy of the
+ * License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License and README for the specific language governing permissions and
+ * limitations under the License.
+ */
+package vortex.commons.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exercises the pane arithmetic of a single instance, without any DDS
+ * entity: panes are numbered from the epoch and samples are added directly.
+ */
+public class WindowedAggregatorTest {
+
+    private static WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>>.KeyState state(long size, long slide) {
+        final WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>> aggregator = WindowedAggregator.sliding(
+                null, v -> v, size, slide, TimeUnit.MILLISECONDS, WindowedAggregator.TimeBase.ARRIVAL, a -> a, null);
+        return aggregator.new KeyState(null);
+    }
+
+    private static void assertWindow(WindowedAggregator.Aggregate<Double> a, long start, long end, long count, double sum, double min, double max) {
+        assertEquals(start, a.start(TimeUnit.MILLISECONDS));
+        assertEquals(end, a.end(TimeUnit.MILLISECONDS));
+        assertEquals(count, a.count());
+        assertEquals(sum, a.sum(), 0);
+        assertEquals(min, a.min(), 0);
+        assertEquals(max, a.max(), 0);
+    }
+
+    @Test
+    public void tumblingEmitsOncePerWindow() {
+        final WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>>.KeyState ks = state(10, 10);
+        final List<WindowedAggregator.Aggregate<Double>> out = new ArrayList<>();
+        ks.add(0, 1, 1.0, out);
+        ks.add(0, 3, 3.0, out);
+        assertTrue(out.isEmpty());
+
+        ks.add(1, 5, 5.0, out);
+        assertEquals(1, out.size());
+        assertWindow(out.get(0), 0, 10, 2, 4, 1, 3);
+
+        out.clear();
+        ks.advance(2, out);
+        assertEquals(1, out.size());
+        assertWindow(out.get(0), 10, 20, 1, 5, 5, 5);
+        assertTrue(ks.isEmpty());
+    }
+
+    @Test
+    public void slidingCombinesOverlappingPanes() {
+        // 5ms panes, two per window, one per slide
+        final WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>>.KeyState ks = state(10, 5);
+        final List<WindowedAggregator.Aggregate<Double>> out = new ArrayList<>();
+        ks.add(0, 1, 1.0, out);
+        ks.add(1, 2, 2.0, out);
+        ks.add(2, 4, 4.0, out);
+        assertEquals(2, out.size());
+        assertWindow(out.get(0), -5, 5, 1, 1, 1, 1);
+        assertWindow(out.get(1), 0, 10, 2, 3, 1, 2);
+
+        // jumping ahead emits the windows still holding data, then nothing
+        out.clear();
+        ks.add(5, 8, 8.0, out);
+        assertEquals(2, out.size());
+        assertWindow(out.get(0), 5, 15, 2, 6, 2, 4);
+        assertWindow(out.get(1), 10, 20, 1, 4, 4, 4);
+    }
+
+    @Test
+    public void slideNotDividingTheWindowEmitsOnSlideBoundaries() {
+        // 5ms panes, three per window, two per slide
+        final WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>>.KeyState ks = state(15, 10);
+        final List<WindowedAggregator.Aggregate<Double>> out = new ArrayList<>();
+        ks.add(0, 1, 1.0, out);
+        ks.add(1, 2, 2.0, out);
+        ks.add(2, 3, 3.0, out);
+        ks.add(3, 4, 4.0, out);
+        assertEquals(1, out.size());
+        assertWindow(out.get(0), -5, 10, 2, 3, 1, 2);
+
+        out.clear();
+        ks.advance(6, out);
+        assertEquals(2, out.size());
+        assertWindow(out.get(0), 5, 20, 3, 9, 2, 4);
+        assertWindow(out.get(1), 15, 30, 1, 4, 4, 4);
+    }
+
+    @Test
+    public void lateSamplesAreRejected() {
+        final WindowedAggregator<Double, WindowedAggregator.Aggregate<Double>>.KeyState ks = state(10, 5);
+        final List<WindowedAggregator.Aggregate<Double>> out = new ArrayList<>();
+        ks.add(5, 1, 1.0, out);
+        assertFalse(ks.add(3, 2, 2.0, out));
+        // still within the open window
+        assertTrue(ks.add(4, 3, 3.0, out));
+
+        ks.advance(6, out);
+        assertEquals(1, out.size());
+        assertWindow(out.get(0), 20, 30, 2, 4, 1, 3);
+    }
+}